@@ -16,10 +16,13 @@
 package tech.zhiqu.cache;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -38,7 +41,10 @@ public class AndroidCache {
     public static final int TIME_DAY = TIME_HOUR * 24;
     private static final int MAX_SIZE = 1024 * 1024 * 50; // 50 MB
     private static final int MAX_COUNT = Integer.MAX_VALUE; // 不限制存放数据的数量
-    private static Map<String, AndroidCache> mInstanceMap = new HashMap<>();
+    private static final ConcurrentHashMap<String, AndroidCache> mInstanceMap = new ConcurrentHashMap<>();
+    private final String mInstanceKey;
+    // 正在关闭时仍留在实例表中，同一目录的 getInstance 等待关闭完成后再创建新实例
+    private volatile boolean mClosing;
     private CacheService mCache;
 
 
@@ -61,19 +67,35 @@ public class AndroidCache {
     }
 
     public static AndroidCache getInstance(File cacheDir, long max_size, int max_count) {
-        AndroidCache manager = mInstanceMap.get(cacheDir.getAbsoluteFile() + myPid());
-        if (manager == null) {
-            manager = new AndroidCache(cacheDir, max_size, max_count);
-            mInstanceMap.put(cacheDir.getAbsolutePath() + myPid(), manager);
+        String key = cacheDir.getAbsolutePath() + myPid();
+        while (true) {
+            AndroidCache manager = mInstanceMap.get(key);
+            if (manager == null) {
+                // 同一个目录只创建一个实例，避免两个 CacheService 同时统计和淘汰同一批文件
+                synchronized (mInstanceMap) {
+                    manager = mInstanceMap.get(key);
+                    if (manager == null) {
+                        manager = new AndroidCache(key, cacheDir, max_size, max_count);
+                        mInstanceMap.put(key, manager);
+                    }
+                }
+            }
+            if (!manager.mClosing) {
+                return manager;
+            }
+            // close() 持有实例的锁直到关闭完成并移出实例表，只阻塞同一个目录
+            synchronized (manager) {
+                mInstanceMap.remove(key, manager);
+            }
         }
-        return manager;
     }
 
     private static String myPid() {
         return "_" + android.os.Process.myPid();
     }
 
-    private AndroidCache(File cacheDir, long max_size, int max_count) {
+    private AndroidCache(String instanceKey, File cacheDir, long max_size, int max_count) {
+        mInstanceKey = instanceKey;
         if (!cacheDir.exists() && !cacheDir.mkdirs()) {
             throw new RuntimeException("can't make dirs in "
                     + cacheDir.getAbsolutePath());
@@ -242,6 +264,64 @@ public class AndroidCache {
         return mCache.getBinary(key);
     }
 
+    /**
+     * 读取 byte 数据的一部分，只读取需要的字节，适合大文件的分段读取
+     *
+     * @param key
+     * @param offset 起始位置
+     * @param length 最多读取的字节数
+     * @return byte 数据，到达末尾时可能少于 length；不存在或 offset 超出末尾时返回 null
+     */
+    public byte[] getRange(String key, long offset, int length) {
+        return mCache.getRange(key, offset, length);
+    }
+
+    /**
+     * 从 byte 数据的 position 处开始读取，最多填满 dst 的剩余空间
+     *
+     * @param key
+     * @param position 起始位置
+     * @param dst      读取的数据写入 dst
+     * @return 读取的字节数；不存在或 position 超出末尾时返回 -1
+     */
+    public int read(String key, long position, ByteBuffer dst) {
+        return mCache.read(key, position, dst);
+    }
+
+    /**
+     * 从输入流保存大数据，数据分块保存，长度不受 byte[] 大小限制。in 由调用方关闭。
+     *
+     * @param key 保存的key
+     * @param in  数据来源
+     * @return 是否保存成功
+     */
+    public boolean put(String key, InputStream in) {
+        return mCache.setKeyValueStream(key, in, -1);
+    }
+
+    /**
+     * 从输入流保存大数据
+     *
+     * @param key      保存的key
+     * @param in       数据来源
+     * @param saveTime 保存的时间，单位：秒
+     * @return 是否保存成功
+     */
+    public boolean put(String key, InputStream in, int saveTime) {
+        return mCache.setKeyValueStream(key, in, saveTime);
+    }
+
+    /**
+     * 把 byte 数据按顺序写入 out，分块保存的大数据边读边写，不会整体读入内存
+     *
+     * @param key
+     * @param out 数据写入 out，由调用方关闭
+     * @return 不存在或已过期时返回 false
+     */
+    public boolean getStream(String key, OutputStream out) throws IOException {
+        return mCache.getStream(key, out);
+    }
+
     // =======================================
     // ============= 序列化 数据 读写 ===============
     // =======================================
@@ -303,7 +383,51 @@ public class AndroidCache {
      * @param saveTime 保存的时间，单位：秒
      */
     public void put(String key, Bitmap value, int saveTime) {
-        put(key, mCache.Bitmap2Bytes(value), saveTime);
+        putBitmapBytes(key, mCache.Bitmap2Bytes(value), saveTime);
+    }
+
+    /**
+     * 以指定的格式和质量保存 bitmap 到 缓存中
+     *
+     * @param key     保存的key
+     * @param value   保存的bitmap数据
+     * @param format  编码格式：PNG、JPEG、WEBP
+     * @param quality 编码质量 0-100，PNG 会忽略该值
+     */
+    public void put(String key, Bitmap value, Bitmap.CompressFormat format, int quality) {
+        put(key, mCache.Bitmap2Bytes(value, format, quality));
+    }
+
+    /**
+     * 以指定的格式和质量保存 bitmap 到 缓存中
+     *
+     * @param key      保存的key
+     * @param value    保存的 bitmap 数据
+     * @param format   编码格式：PNG、JPEG、WEBP
+     * @param quality  编码质量 0-100，PNG 会忽略该值
+     * @param saveTime 保存的时间，单位：秒
+     */
+    public void put(String key, Bitmap value, Bitmap.CompressFormat format, int quality,
+                    int saveTime) {
+        putBitmapBytes(key, mCache.Bitmap2Bytes(value, format, quality), saveTime);
+    }
+
+    // 直接写入带时间信息的编码数据，保证 getAsBitmap 读取时只需解码一次
+    private void putBitmapBytes(String key, byte[] data, int saveTime) {
+        if (data == null) {
+            return;
+        }
+        mCache.setKeyValueByte(key, mCache.newByteArrayWithDateInfo(saveTime, data));
+    }
+
+    /**
+     * 设置 put(Bitmap)/put(Drawable) 默认的编码格式和质量，默认 PNG / 100
+     *
+     * @param format  编码格式：PNG、JPEG、WEBP
+     * @param quality 编码质量 0-100，PNG 会忽略该值
+     */
+    public void setBitmapCompress(Bitmap.CompressFormat format, int quality) {
+        mCache.setBitmapCompress(format, quality);
     }
 
     /**
@@ -313,12 +437,34 @@ public class AndroidCache {
      * @return bitmap 数据
      */
     public Bitmap getAsBitmap(String key) {
-        if (getAsBinary(key) == null) {
-            return null;
-        }
         return mCache.Bytes2Bimap(getAsBinary(key));
     }
 
+    /**
+     * 按目标尺寸降采样读取 bitmap 数据
+     *
+     * @param key
+     * @param reqWidth  目标宽度，<= 0 表示不限制
+     * @param reqHeight 目标高度，<= 0 表示不限制
+     * @return bitmap 数据
+     */
+    public Bitmap getAsBitmap(String key, int reqWidth, int reqHeight) {
+        return getAsBitmap(key, reqWidth, reqHeight, null);
+    }
+
+    /**
+     * 按目标尺寸降采样读取 bitmap 数据，并尽量复用 reusable 的内存
+     *
+     * @param key
+     * @param reqWidth  目标宽度，<= 0 表示不限制
+     * @param reqHeight 目标高度，<= 0 表示不限制
+     * @param reusable  可复用的 mutable bitmap，不兼容时会重新分配
+     * @return bitmap 数据
+     */
+    public Bitmap getAsBitmap(String key, int reqWidth, int reqHeight, Bitmap reusable) {
+        return mCache.Bytes2Bimap(getAsBinary(key), reqWidth, reqHeight, reusable);
+    }
+
     // =======================================
     // ============= drawable 数据 读写 =============
     // =======================================
@@ -351,23 +497,30 @@ public class AndroidCache {
      * @return Drawable 数据
      */
     public Drawable getAsDrawable(String key) {
-        if (getAsBinary(key) == null) {
-            return null;
-        }
-        return mCache.bitmap2Drawable(mCache.Bytes2Bimap(getAsBinary(key)));
+        return mCache.bitmap2Drawable(getAsBitmap(key));
+    }
+
+    /**
+     * 按目标尺寸降采样读取 Drawable 数据
+     *
+     * @param key
+     * @param reqWidth  目标宽度，<= 0 表示不限制
+     * @param reqHeight 目标高度，<= 0 表示不限制
+     * @return Drawable 数据
+     */
+    public Drawable getAsDrawable(String key, int reqWidth, int reqHeight) {
+        return mCache.bitmap2Drawable(getAsBitmap(key, reqWidth, reqHeight));
     }
 
     /**
-     * 获取缓存文件
+     * 获取缓存文件。去重保存的数据返回共享的内容文件，其中不含过期时间，不能修改或删除；
+     * 分块保存的数据没有单个文件，返回 null，请使用 {@link #getStream}
      *
      * @param key
-     * @return value 缓存的文件
+     * @return value 缓存的文件，不存在或分块保存时返回 null
      */
     public File file(String key) {
-        File f = mCache.newFile(key);
-        if (f.exists())
-            return f;
-        return null;
+        return mCache.dataFile(key);
     }
 
     /**
@@ -380,6 +533,86 @@ public class AndroidCache {
         return mCache.remove(key);
     }
 
+    /**
+     * 添加分区：以 keyPrefix 开头的 key 单独限制大小和数量，分区超出上限时只淘汰分区内的数据，
+     * 不会挤掉其它功能的缓存
+     *
+     * @param keyPrefix 分区 key 前缀
+     * @param maxSize   分区大小上限，单位：字节
+     * @param maxCount  分区数量上限
+     * @return 分区，可用于查看分区的占用情况
+     */
+    public CachePartition addPartition(String keyPrefix, long maxSize, int maxCount) {
+        return mCache.addPartition(keyPrefix, maxSize, maxCount);
+    }
+
+    /**
+     * 开启按内容去重：不小于 minSize 的 byte / 序列化数据按内容只保存一份，多个 key 保存相同内容时
+     * 只占用一份空间；删除或淘汰最后一个引用时才删除内容
+     *
+     * @param minSize 去重的最小数据长度，单位：字节，<= 0 表示关闭
+     */
+    public void setDeduplication(int minSize) {
+        mCache.setDeduplication(minSize);
+    }
+
+    /**
+     * 开启分块保存：不小于 minSize 的 byte / 序列化数据切成 chunkSize 大小的块，多个块并行读写。
+     * 所有块写完后才提交，读取和淘汰不会看到只写了一部分的数据。
+     *
+     * @param minSize   分块的最小数据长度，单位：字节，<= 0 表示关闭
+     * @param chunkSize 每块的大小，单位：字节
+     */
+    public void setChunking(int minSize, int chunkSize) {
+        mCache.setChunking(minSize, chunkSize);
+    }
+
+    /**
+     * 开启合并写：窗口内对同一个 key 多次保存 String 数据时只保留最后一次，窗口结束时写一次文件。
+     * 未落盘的数据同样可以读取。
+     *
+     * @param windowMillis 合并窗口，单位：毫秒，<= 0 表示关闭
+     */
+    public void setWriteCoalescing(long windowMillis) {
+        mCache.setWriteCoalescing(windowMillis);
+    }
+
+    /**
+     * 开启堆外缓存层，频繁读取的 byte 数据直接从堆外内存返回，不访问磁盘，也不占用 Java 堆
+     *
+     * @param maxBytes 堆外内存上限，单位：字节，不小于 1 MB
+     */
+    public void enableOffHeapCache(long maxBytes) {
+        mCache.enableOffHeapTier(maxBytes);
+    }
+
+    /**
+     * 关闭堆外缓存层
+     */
+    public void disableOffHeapCache() {
+        mCache.disableOffHeapTier();
+    }
+
+    /**
+     * 导出所有未过期的数据（含过期时间），可在新设备或升级后用 importSnapshot 导入，避免冷启动
+     *
+     * @param out 导出的目标流，不会被关闭
+     * @return 导出的数据条数
+     */
+    public int exportSnapshot(OutputStream out) throws IOException {
+        return mCache.exportSnapshot(out);
+    }
+
+    /**
+     * 批量导入 exportSnapshot 导出的数据，已存在的同名 key 会被覆盖
+     *
+     * @param in 导入的来源流，不会被关闭
+     * @return 导入的数据条数
+     */
+    public int importSnapshot(InputStream in) throws IOException {
+        return mCache.importSnapshot(in);
+    }
+
     /**
      * 清除所有数据
      */
@@ -387,5 +620,26 @@ public class AndroidCache {
         mCache.clear();
     }
 
+    /**
+     * 写入合并窗口中尚未落盘的数据，并保存使用时间，保证进程被杀后再启动时数据和 LRU 顺序不丢失
+     */
+    public void flush() {
+        mCache.flush();
+    }
+
+    /**
+     * 关闭缓存：flush 后停止后台线程、释放堆外内存，并从实例表中移除。
+     * 关闭后不应再使用该实例，再次调用 getInstance 会创建新的实例。
+     */
+    public synchronized void close() {
+        if (mClosing) {
+            return;
+        }
+        // 关闭完成前实例留在实例表中，同一个目录的 getInstance 会等待，其它目录不受影响
+        mClosing = true;
+        mCache.close();
+        mInstanceMap.remove(mInstanceKey, this);
+    }
+
 
 }
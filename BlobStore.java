@@ -0,0 +1,265 @@
+package tech.zhiqu.cache;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 按内容去重的数据存储：相同内容只在 blobDir 中保存一份（文件名为内容的 SHA-256），
+ * 缓存目录中的 key 文件只保存一个指向它的引用，引用计数归零时删除数据文件。
+ * <p/>
+ * 引用计数只保存在内存中，启动时由 CacheService 扫描 key 文件重建。
+ */
+public class BlobStore {
+    private static final String TAG = "BlobStore";
+    private static final byte[] POINTER_MAGIC = "\u0000blob:".getBytes();
+    private static final int HASH_LENGTH = 64; // SHA-256 hex
+    public static final int POINTER_LENGTH = POINTER_MAGIC.length + HASH_LENGTH;
+
+    private final File blobDir;
+    private final Map<String, Blob> blobs = new HashMap<>();
+    // 正在写入的临时文件名，deleteUnreferenced 不会删除它们
+    private final Set<String> writing = new HashSet<>();
+    private long tempCounter;
+
+    public BlobStore(File blobDir) {
+        this.blobDir = blobDir;
+    }
+
+    public File getBlobDir() {
+        return blobDir;
+    }
+
+    /**
+     * @return data[offset, data.length) 的 SHA-256，十六进制小写
+     */
+    public static String hash(byte[] data, int offset) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(data, offset, data.length - offset);
+            byte[] bytes = digest.digest();
+            StringBuilder sb = new StringBuilder(HASH_LENGTH);
+            for (byte b : bytes) {
+                sb.append(Character.forDigit((b >> 4) & 0x0F, 16));
+                sb.append(Character.forDigit(b & 0x0F, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static byte[] newPointer(String hash) {
+        byte[] pointer = new byte[POINTER_LENGTH];
+        System.arraycopy(POINTER_MAGIC, 0, pointer, 0, POINTER_MAGIC.length);
+        byte[] hashBytes = hash.getBytes();
+        System.arraycopy(hashBytes, 0, pointer, POINTER_MAGIC.length, HASH_LENGTH);
+        return pointer;
+    }
+
+    /**
+     * @return data 从 offset 开始是引用时返回内容 hash，否则返回 null
+     */
+    public static String parsePointer(byte[] data, int offset) {
+        if (data == null || data.length - offset != POINTER_LENGTH) {
+            return null;
+        }
+        for (int i = 0; i < POINTER_MAGIC.length; i++) {
+            if (data[offset + i] != POINTER_MAGIC[i]) {
+                return null;
+            }
+        }
+        return new String(data, offset + POINTER_MAGIC.length, HASH_LENGTH);
+    }
+
+    /**
+     * 增加一次引用，内容不存在时写入 data[offset, data.length)。
+     * 数据在锁外写入临时文件，只有检查和登记引用、改名时持有锁。
+     *
+     * @return 新写入的字节数，内容已存在时为 0，写入失败时为 -1
+     */
+    public long acquire(String hash, byte[] data, int offset) {
+        File tmp;
+        synchronized (this) {
+            Blob blob = blobs.get(hash);
+            if (blob != null) {
+                blob.refs++;
+                return 0;
+            }
+            // 同一内容可能被并发写入，各自使用不同的临时文件
+            tmp = new File(blobDir, hash + "." + (++tempCounter) + ".tmp");
+            writing.add(tmp.getName());
+        }
+        try {
+            if (!writeTemp(tmp, data, offset)) {
+                return -1;
+            }
+            synchronized (this) {
+                Blob blob = blobs.get(hash);
+                if (blob != null) {
+                    blob.refs++;
+                    return 0;
+                }
+                if (!tmp.renameTo(file(hash))) {
+                    return -1;
+                }
+                blob = new Blob(data.length - offset);
+                blob.refs = 1;
+                blobs.put(hash, blob);
+                return blob.size;
+            }
+        } finally {
+            synchronized (this) {
+                writing.remove(tmp.getName());
+            }
+            // 改名成功后临时文件已不存在
+            tmp.delete();
+        }
+    }
+
+    private boolean writeTemp(File tmp, byte[] data, int offset) {
+        if (!blobDir.exists() && !blobDir.mkdirs()) {
+            Log.w(TAG, "can't make dirs in " + blobDir.getAbsolutePath());
+            return false;
+        }
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            out.write(data, offset, data.length - offset);
+            out.close();
+            out = null;
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * 启动扫描时登记已有的引用
+     *
+     * @return 首次登记该内容时返回其字节数，否则为 0；数据文件不存在时返回 -1
+     */
+    public synchronized long register(String hash) {
+        Blob blob = blobs.get(hash);
+        if (blob == null) {
+            File file = file(hash);
+            if (!file.exists()) {
+                return -1;
+            }
+            blob = new Blob(file.length());
+            blobs.put(hash, blob);
+            blob.refs = 1;
+            return blob.size;
+        }
+        blob.refs++;
+        return 0;
+    }
+
+    /**
+     * 减少一次引用，归零时删除数据文件
+     *
+     * @return 释放的字节数
+     */
+    public synchronized long release(String hash) {
+        Blob blob = blobs.get(hash);
+        if (blob == null) {
+            return 0;
+        }
+        if (--blob.refs > 0) {
+            return 0;
+        }
+        blobs.remove(hash);
+        File file = file(hash);
+        if (!file.delete() && file.exists()) {
+            Log.w(TAG, "can't delete " + file.getAbsolutePath());
+        }
+        return blob.size;
+    }
+
+    /**
+     * @return 内容的字节数，没有引用时为 0
+     */
+    public synchronized long size(String hash) {
+        Blob blob = blobs.get(hash);
+        return blob == null ? 0 : blob.size;
+    }
+
+    public File file(String hash) {
+        return new File(blobDir, hash);
+    }
+
+    public byte[] read(String hash) throws IOException {
+        File file = file(hash);
+        if (!file.exists()) {
+            return null;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] data = new byte[(int) raf.length()];
+            raf.readFully(data);
+            return data;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * 删除没有任何引用的数据文件（包括写入中断留下的临时文件，正在写入的除外）
+     */
+    public synchronized void deleteUnreferenced() {
+        File[] files = blobDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (!blobs.containsKey(file.getName()) && !writing.contains(file.getName())) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * @return 所有内容占用的字节数
+     */
+    public synchronized long totalSize() {
+        long size = 0;
+        for (Blob blob : blobs.values()) {
+            size += blob.size;
+        }
+        return size;
+    }
+
+    /**
+     * 只清空内存中的引用计数，文件由调用方处理
+     */
+    public synchronized void reset() {
+        blobs.clear();
+    }
+
+    private static final class Blob {
+        final long size;
+        int refs;
+
+        Blob(long size) {
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package tech.zhiqu.cache;
+
+/**
+ * 计数 Bloom filter，用于在访问文件系统之前快速判断 key 一定不存在。
+ * <p/>
+ * 每个位置是一个 4 bit 计数器（两个计数器占一个 byte），因此支持删除；计数器到 15 后不再变化，
+ * 这种情况下删除只会留下误判，不会漏判。
+ */
+public class BloomFilter {
+    private static final int MAX_COUNT = 15;
+
+    private final int capacity;
+    private final int numCounters;
+    private final int numHashes;
+    private final byte[] counters;
+    private int size;
+
+    /**
+     * @param capacity 预计保存的 key 数量
+     * @param fpp      期望的误判率，例如 0.01
+     */
+    public BloomFilter(int capacity, double fpp) {
+        if (capacity <= 0 || fpp <= 0 || fpp >= 1) {
+            throw new IllegalArgumentException("bad bloom filter: " + capacity + ", " + fpp);
+        }
+        this.capacity = capacity;
+        long m = (long) Math.ceil(-capacity * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        numCounters = (int) Math.max(64, Math.min(m, Integer.MAX_VALUE - 1));
+        numHashes = Math.max(1, (int) Math.round((double) numCounters / capacity * Math.log(2)));
+        counters = new byte[(numCounters + 1) / 2];
+    }
+
+    public void add(String key) {
+        int h1 = hash1(key);
+        int h2 = hash2(h1);
+        for (int i = 0; i < numHashes; i++) {
+            int index = index(h1, h2, i);
+            int count = counter(index);
+            if (count < MAX_COUNT) {
+                setCounter(index, count + 1);
+            }
+        }
+        size++;
+    }
+
+    /**
+     * 删除 key；只能删除之前 add 过的 key，否则会造成漏判
+     */
+    public void remove(String key) {
+        int h1 = hash1(key);
+        int h2 = hash2(h1);
+        for (int i = 0; i < numHashes; i++) {
+            int index = index(h1, h2, i);
+            int count = counter(index);
+            if (count > 0 && count < MAX_COUNT) {
+                setCounter(index, count - 1);
+            }
+        }
+        if (size > 0) {
+            size--;
+        }
+    }
+
+    /**
+     * @return false 表示 key 一定不存在，true 表示可能存在
+     */
+    public boolean mightContain(String key) {
+        int h1 = hash1(key);
+        int h2 = hash2(h1);
+        for (int i = 0; i < numHashes; i++) {
+            if (counter(index(h1, h2, i)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    private int index(int h1, int h2, int i) {
+        int combined = h1 + i * h2;
+        return (combined & Integer.MAX_VALUE) % numCounters;
+    }
+
+    private int counter(int index) {
+        int b = counters[index >> 1];
+        return (index & 1) == 0 ? b & 0x0F : (b >> 4) & 0x0F;
+    }
+
+    private void setCounter(int index, int value) {
+        int i = index >> 1;
+        int b = counters[i];
+        if ((index & 1) == 0) {
+            b = (b & 0xF0) | value;
+        } else {
+            b = (b & 0x0F) | (value << 4);
+        }
+        counters[i] = (byte) b;
+    }
+
+    // murmur3 fmix32
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private static int hash1(String key) {
+        return mix(key.hashCode());
+    }
+
+    private static int hash2(int h1) {
+        // 保证为奇数，避免多个 hash 落在同一位置
+        return mix(h1 ^ 0x9e3779b9) | 1;
+    }
+}
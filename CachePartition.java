@@ -0,0 +1,69 @@
+package tech.zhiqu.cache;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 缓存分区：以 keyPrefix 开头的 key 属于该分区，分区有自己的大小和数量上限。
+ * <p/>
+ * 分区和其它数据共用同一个目录和索引；分区超出上限时只淘汰分区内最久未使用的数据。
+ */
+public class CachePartition {
+    private final String keyPrefix;
+    private final long sizeLimit;
+    private final int countLimit;
+    private final AtomicLong size = new AtomicLong();
+    private final AtomicInteger count = new AtomicInteger();
+
+    CachePartition(String keyPrefix, long sizeLimit, int countLimit) {
+        if (keyPrefix == null || keyPrefix.length() == 0) {
+            throw new IllegalArgumentException("keyPrefix is empty");
+        }
+        if (sizeLimit <= 0 || countLimit <= 0) {
+            throw new IllegalArgumentException("bad partition limits: " + sizeLimit + ", " + countLimit);
+        }
+        this.keyPrefix = keyPrefix;
+        this.sizeLimit = sizeLimit;
+        this.countLimit = countLimit;
+    }
+
+    public String getKeyPrefix() {
+        return keyPrefix;
+    }
+
+    public long getSizeLimit() {
+        return sizeLimit;
+    }
+
+    public int getCountLimit() {
+        return countLimit;
+    }
+
+    /**
+     * @return 分区当前占用的字节数
+     */
+    public long size() {
+        return size.get();
+    }
+
+    /**
+     * @return 分区当前保存的数据数量
+     */
+    public int count() {
+        return count.get();
+    }
+
+    boolean contains(String key) {
+        return key.startsWith(keyPrefix);
+    }
+
+    void addUsage(long bytes, int entries) {
+        size.addAndGet(bytes);
+        count.addAndGet(entries);
+    }
+
+    void resetUsage() {
+        size.set(0);
+        count.set(0);
+    }
+}
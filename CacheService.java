@@ -8,25 +8,45 @@ import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.util.Log;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -34,12 +54,82 @@ import java.util.concurrent.atomic.AtomicLong;
  * Created by tiger007 on 1/26/16.
  */
 public class CacheService {
+    private static final String TAG = "CacheService";
+    private static final String TRASH_SUFFIX = ".trash-";
+    private static final String BLOB_DIR_SUFFIX = ".blobs";
+    private static final String CHUNK_DIR_SUFFIX = ".chunks";
+    private static final String TEMP_DIR_SUFFIX = ".tmp";
+    // 时间信息最长为：13 位时间戳 + '-' + int 秒数（最多 11 个字符）+ 分隔符
+    private static final int MAX_DATE_INFO_LENGTH = 13 + 1 + 11 + 1;
+    private static final int SNAPSHOT_MAGIC = 0x41435332; // "ACS2"，长度为 long
+    private static final int SNAPSHOT_MAGIC_V1 = 0x41435331; // "ACS1"，长度为 int，仍可导入
+    private static final long CLOSE_TIMEOUT_SECONDS = 5;
+    private static final int BLOOM_INITIAL_CAPACITY = 1024;
+    private static final double BLOOM_FPP = 0.01;
     private final AtomicLong cacheSize;
     private final AtomicInteger cacheCount;
     private final long sizeLimit;
     private final int countLimit;
     private final Map<File, Long> lastUsageDates = Collections
             .synchronizedMap(new HashMap<File, Long>());
+    // 只在内存中更新过使用时间的文件，flush 时写回文件的修改时间，下次启动扫描时保持 LRU 顺序
+    private final Set<File> touchedInMemory = Collections
+            .newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+    private volatile boolean closed;
+    // 每个文件计入 cacheSize 的大小，覆盖写和删除时据此修正统计；由 accountingLock 保护
+    private final Object accountingLock = new Object();
+    private final Map<File, Long> entrySizes = new HashMap<>();
+    private final CopyOnWriteArrayList<CachePartition> partitions = new CopyOnWriteArrayList<>();
+    // 去重：不小于 dedupThreshold 的 byte 数据按内容只保存一份，key 文件 → 内容 hash；由 accountingLock 保护。
+    // cacheSize 中每份内容只计一次；分区按每个引用各计一次，分区配额与不去重时一致
+    private volatile int dedupThreshold;
+    private final BlobStore blobStore;
+    private final Map<File, String> blobRefs = new HashMap<>();
+    // 分块：不小于 chunkThreshold 的 byte 数据分块保存，key 文件 → 清单；由 accountingLock 保护
+    private volatile int chunkThreshold;
+    private volatile int chunkSize = ChunkStore.DEFAULT_CHUNK_SIZE;
+    private final ChunkStore chunkStore;
+    private final Map<File, ChunkStore.Manifest> chunkRefs = new HashMap<>();
+    // 原子写入用的临时文件目录，clear() 不会替换它，写入中的文件不受 clear 影响
+    private final File tempDir;
+    private final AtomicLong tempCounter = new AtomicLong();
+    private final Set<String> writingTemps = Collections
+            .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final ScheduledThreadPoolExecutor backgroundExecutor = new ScheduledThreadPoolExecutor(1,
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, TAG + "-background");
+                    t.setDaemon(true);
+                    t.setPriority(Thread.MIN_PRIORITY);
+                    return t;
+                }
+            });
+    private volatile Bitmap.CompressFormat bitmapFormat = Bitmap.CompressFormat.PNG;
+    private volatile int bitmapQuality = 100;
+    private volatile SlabMemoryCache offHeapTier;
+    // 合并写：窗口内对同一个 key 的多次 setKeyValue 只保留最后一次，窗口结束时写一次文件
+    private volatile long coalesceWindowMillis;
+    private final ConcurrentHashMap<String, String> pendingWrites = new ConcurrentHashMap<>();
+    // 合并写单独使用一个线程落盘，不会排在索引扫描、回收目录删除等耗时任务之后
+    private final ScheduledThreadPoolExecutor flushExecutor = new ScheduledThreadPoolExecutor(1,
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, TAG + "-flush");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+    // 后台建立索引期间写入的文件，索引完成后再做大小/数量限制
+    private final Object indexLock = new Object();
+    private final Set<File> pendingFiles = new LinkedHashSet<>();
+    private final CountDownLatch indexLatch = new CountDownLatch(1);
+    private boolean indexReady;
+    private int indexGeneration;
+    // 索引建立完成后，mightContain 返回 false 的 key 一定不存在，不需要访问文件系统
+    private final Object bloomLock = new Object();
+    private BloomFilter bloomFilter = new BloomFilter(BLOOM_INITIAL_CAPACITY, BLOOM_FPP);
     protected File cacheDir;
 
     public CacheService(File cacheDir, long sizeLimit, int countLimit) {
@@ -48,11 +138,32 @@ public class CacheService {
         this.countLimit = countLimit;
         cacheSize = new AtomicLong();
         cacheCount = new AtomicInteger();
-        calculateCacheSizeAndCacheCount();
+        backgroundExecutor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        // close 时已经 flush，尚未到期的合并写任务不需要再执行
+        flushExecutor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        blobStore = new BlobStore(new File(cacheDir.getParentFile(),
+                cacheDir.getName() + BLOB_DIR_SUFFIX));
+        chunkStore = new ChunkStore(new File(cacheDir.getParentFile(),
+                cacheDir.getName() + CHUNK_DIR_SUFFIX));
+        tempDir = new File(cacheDir.getParentFile(), cacheDir.getName() + TEMP_DIR_SUFFIX);
+        backgroundExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                buildIndex();
+                deleteLeftoverTrash();
+                deleteLeftoverTemps();
+            }
+        });
     }
 
 
     public boolean existsKey(String key) {
+        if (pendingWrites.containsKey(key)) {
+            return true;
+        }
+        if (!mightContain(key)) {
+            return false;
+        }
         File[] cachedFiles = cacheDir.listFiles();
         if (cachedFiles != null) {
             for (File cachedFile : cachedFiles) {
@@ -98,53 +209,543 @@ public class CacheService {
      * 计算 cacheSize和cacheCount
      */
     public void calculateCacheSizeAndCacheCount() {
-        int size = 0;
-        int count = 0;
         File[] cachedFiles = cacheDir.listFiles();
         if (cachedFiles != null) {
-            for (File cachedFile : cachedFiles) {
-                size += calculateSize(cachedFile);
-                count += 1;
-                lastUsageDates.put(cachedFile,
-                        cachedFile.lastModified());
+            synchronized (accountingLock) {
+                entrySizes.clear();
+                cacheSize.set(0);
+                cacheCount.set(0);
+                for (CachePartition partition : partitions) {
+                    partition.resetUsage();
+                }
+                for (File cachedFile : cachedFiles) {
+                    indexEntry(cachedFile, entrySize(cachedFile));
+                    lastUsageDates.put(cachedFile,
+                            cachedFile.lastModified());
+                }
+                cacheSize.addAndGet(blobStore.totalSize());
+                chargeBlobsToPartitions();
+                rebuildBloomFilter(Math.max(BLOOM_INITIAL_CAPACITY, entrySizes.size() * 2));
+            }
+        }
+    }
+
+    /**
+     * @return file 计入统计的大小：文件本身加上它引用的分块；调用方需持有 accountingLock
+     */
+    private long entrySize(File file) {
+        ChunkStore.Manifest manifest = chunkRefs.get(file);
+        return calculateSize(file) + (manifest == null ? 0 : manifest.length());
+    }
+
+    // 调用方需持有 accountingLock。Bloom filter 与 entrySizes 同步增删，不依赖 lastUsageDates
+    private void indexEntry(File file, long size) {
+        Long oldSize = entrySizes.put(file, size);
+        if (oldSize == null) {
+            bloomAdd(file.getName());
+        }
+        long delta = size - (oldSize == null ? 0 : oldSize);
+        int added = oldSize == null ? 1 : 0;
+        cacheSize.addAndGet(delta);
+        cacheCount.addAndGet(added);
+        CachePartition partition = partitionOf(file.getName());
+        if (partition != null) {
+            partition.addUsage(delta, added);
+        }
+    }
+
+    /**
+     * 把文件移出索引并修正统计，不删除文件
+     *
+     * @return 该文件原先计入的大小
+     */
+    private long forget(File file) {
+        synchronized (accountingLock) {
+            lastUsageDates.remove(file);
+            long freed = releaseBlobRef(file, null);
+            releaseChunks(file, null);
+            Long size = entrySizes.remove(file);
+            if (size == null) {
+                return freed;
             }
-            cacheSize.set(size);
-            cacheCount.set(count);
+            bloomRemove(file.getName());
+            cacheSize.addAndGet(-size);
+            cacheCount.addAndGet(-1);
+            CachePartition partition = partitionOf(file.getName());
+            if (partition != null) {
+                partition.addUsage(-size, -1);
+            }
+            return size + freed;
+        }
+    }
+
+    /**
+     * 把 file 的内容引用换成 newHash（null 表示不再引用），旧内容没有其它引用时删除
+     *
+     * @return 释放的字节数；调用方需持有 accountingLock
+     */
+    private long releaseBlobRef(File file, String newHash) {
+        String oldHash = newHash == null ? blobRefs.remove(file) : blobRefs.put(file, newHash);
+        CachePartition partition = partitionOf(file.getName());
+        if (partition != null) {
+            long delta = (newHash == null ? 0 : blobStore.size(newHash))
+                    - (oldHash == null ? 0 : blobStore.size(oldHash));
+            partition.addUsage(delta, 0);
+        }
+        if (oldHash == null) {
+            return 0;
+        }
+        long freed = blobStore.release(oldHash);
+        cacheSize.addAndGet(-freed);
+        return freed;
+    }
+
+    /**
+     * 重新统计分区后，把去重内容按引用计入各自的分区；调用方需持有 accountingLock
+     */
+    private void chargeBlobsToPartitions() {
+        for (Map.Entry<File, String> entry : blobRefs.entrySet()) {
+            CachePartition partition = partitionOf(entry.getKey().getName());
+            if (partition != null) {
+                partition.addUsage(blobStore.size(entry.getValue()), 0);
+            }
+        }
+    }
+
+    /**
+     * 把 file 引用的分块换成 newManifest（null 表示不再引用），旧的块文件在后台删除。
+     * 分块的大小计入 file 自己的 entrySizes，统计随 file 一起修正。调用方需持有 accountingLock
+     */
+    private void releaseChunks(File file, ChunkStore.Manifest newManifest) {
+        final ChunkStore.Manifest old = newManifest == null
+                ? chunkRefs.remove(file) : chunkRefs.put(file, newManifest);
+        if (old == null) {
+            return;
+        }
+        try {
+            backgroundExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    chunkStore.delete(old);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // 已经 close，直接删除
+            chunkStore.delete(old);
         }
     }
 
+    /**
+     * 添加分区：以 keyPrefix 开头的 key 单独限制大小和数量，超出时只淘汰分区内的数据。
+     * 前缀重叠时 key 属于最长的那个前缀。
+     */
+    public CachePartition addPartition(String keyPrefix, long sizeLimit, int countLimit) {
+        CachePartition partition = new CachePartition(keyPrefix, sizeLimit, countLimit);
+        synchronized (accountingLock) {
+            for (CachePartition old : partitions) {
+                if (old.getKeyPrefix().equals(keyPrefix)) {
+                    partitions.remove(old);
+                }
+            }
+            partitions.add(partition);
+            // 新前缀可能改变已有数据的归属，重新统计各分区
+            for (CachePartition p : partitions) {
+                p.resetUsage();
+            }
+            for (Map.Entry<File, Long> entry : entrySizes.entrySet()) {
+                CachePartition p = partitionOf(entry.getKey().getName());
+                if (p != null) {
+                    p.addUsage(entry.getValue(), 1);
+                }
+            }
+            chargeBlobsToPartitions();
+        }
+        return partition;
+    }
+
+    public CachePartition getPartition(String keyPrefix) {
+        for (CachePartition partition : partitions) {
+            if (partition.getKeyPrefix().equals(keyPrefix)) {
+                return partition;
+            }
+        }
+        return null;
+    }
+
+    private CachePartition partitionOf(String key) {
+        CachePartition match = null;
+        for (CachePartition partition : partitions) {
+            if (partition.contains(key) && (match == null
+                    || partition.getKeyPrefix().length() > match.getKeyPrefix().length())) {
+                match = partition;
+            }
+        }
+        return match;
+    }
+
+    /**
+     * 后台扫描缓存目录，完成后再处理扫描期间写入的文件
+     */
+    private void buildIndex() {
+        int generation;
+        synchronized (indexLock) {
+            generation = indexGeneration;
+        }
+        File[] cachedFiles = cacheDir.listFiles();
+        Map<File, String> pointers = new HashMap<>();
+        Map<File, ChunkStore.Manifest> manifests = new HashMap<>();
+        readReferences(cachedFiles, pointers, manifests);
+        File[] pending;
+        synchronized (indexLock) {
+            // 扫描期间调用过 clear()，扫描结果已经失效
+            if (cachedFiles != null && generation == indexGeneration) {
+                synchronized (accountingLock) {
+                    for (File cachedFile : cachedFiles) {
+                        // 扫描之后被 remove() 或淘汰删除的文件不能再记入统计
+                        if (pendingFiles.contains(cachedFile) || !cachedFile.exists()) {
+                            continue;
+                        }
+                        ChunkStore.Manifest manifest = manifests.get(cachedFile);
+                        if (manifest != null && !chunkRefs.containsKey(cachedFile)) {
+                            chunkRefs.put(cachedFile, manifest);
+                        }
+                        indexEntry(cachedFile, entrySize(cachedFile));
+                        synchronized (lastUsageDates) {
+                            if (!lastUsageDates.containsKey(cachedFile)) {
+                                lastUsageDates.put(cachedFile, cachedFile.lastModified());
+                            }
+                        }
+                        String hash = pointers.get(cachedFile);
+                        if (hash != null && !blobRefs.containsKey(cachedFile)) {
+                            long size = blobStore.register(hash);
+                            if (size >= 0) {
+                                blobRefs.put(cachedFile, hash);
+                                cacheSize.addAndGet(size);
+                                CachePartition partition = partitionOf(cachedFile.getName());
+                                if (partition != null) {
+                                    partition.addUsage(blobStore.size(hash), 0);
+                                }
+                            }
+                        }
+                    }
+                    // close() 超时返回后目录可能已交给新的实例，不能再删除它的数据
+                    if (!closed) {
+                        blobStore.deleteUnreferenced();
+                        Set<String> chunkIds = new HashSet<>();
+                        for (ChunkStore.Manifest manifest : chunkRefs.values()) {
+                            chunkIds.add(manifest.id);
+                        }
+                        chunkStore.deleteUnreferenced(chunkIds);
+                    }
+                }
+            }
+            pending = pendingFiles.toArray(new File[pendingFiles.size()]);
+            pendingFiles.clear();
+            rebuildBloomFilter(Math.max(BLOOM_INITIAL_CAPACITY, entrySizes.size() * 2));
+            indexReady = true;
+        }
+        // 引用已在写入时登记，这里只补做统计和淘汰，不能再经过 put 修改引用
+        for (File file : pending) {
+            if (file.exists()) {
+                index(file);
+            }
+        }
+        indexLatch.countDown();
+    }
+
+    /**
+     * 读取可能是内容引用或分块清单的小文件
+     *
+     * @param pointers  key 文件 → 内容 hash
+     * @param manifests key 文件 → 分块清单
+     */
+    private void readReferences(File[] cachedFiles, Map<File, String> pointers,
+                                Map<File, ChunkStore.Manifest> manifests) {
+        boolean blobs = blobStore.getBlobDir().exists();
+        boolean chunks = chunkStore.getChunkDir().exists();
+        if (cachedFiles == null || (!blobs && !chunks)) {
+            return;
+        }
+        // 引用/清单 = 可选的时间信息 + 引用/清单本身，更大的文件不可能是引用或清单
+        int maxLength = Math.max(BlobStore.POINTER_LENGTH, ChunkStore.MAX_MANIFEST_LENGTH)
+                + MAX_DATE_INFO_LENGTH;
+        for (File cachedFile : cachedFiles) {
+            if (closed) {
+                // 已经关闭，扫描结果不会再使用
+                return;
+            }
+            long length = cachedFile.length();
+            if (length == 0 || length > maxLength) {
+                continue;
+            }
+            RandomAccessFile raf = null;
+            try {
+                raf = new RandomAccessFile(cachedFile, "r");
+                byte[] data = new byte[(int) length];
+                raf.readFully(data);
+                int headerLength = dateInfoLength(data);
+                String hash = blobs ? BlobStore.parsePointer(data, headerLength) : null;
+                ChunkStore.Manifest manifest = chunks
+                        ? ChunkStore.parseManifest(data, headerLength) : null;
+                if (hash != null) {
+                    pointers.put(cachedFile, hash);
+                } else if (manifest != null) {
+                    manifests.put(cachedFile, manifest);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                if (raf != null) {
+                    try {
+                        raf.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return 索引是否已建立完成，未完成前不做大小/数量限制
+     */
+    public boolean isIndexReady() {
+        return indexLatch.getCount() == 0;
+    }
+
+    /**
+     * 等待后台索引建立完成
+     *
+     * @return 是否在超时前完成
+     */
+    public boolean awaitIndexReady(long timeout, TimeUnit unit) throws InterruptedException {
+        return indexLatch.await(timeout, unit);
+    }
+
     public void put(File file) {
-        int curCacheCount = cacheCount.get();
-        while (curCacheCount + 1 > countLimit) {
-            long freedSize = removeNext();
-            cacheSize.addAndGet(-freedSize);
+        put(file, null, null);
+    }
 
-            curCacheCount = cacheCount.addAndGet(-1);
+    /**
+     * @param blobHash file 是内容引用时为内容 hash，否则为 null
+     * @param manifest file 是分块清单时为清单，否则为 null
+     */
+    private void put(File file, String blobHash, ChunkStore.Manifest manifest) {
+        invalidateOffHeap(file.getName());
+        synchronized (accountingLock) {
+            releaseBlobRef(file, blobHash);
+            releaseChunks(file, manifest);
         }
-        cacheCount.addAndGet(1);
+        index(file);
+    }
 
-        long valueSize = calculateSize(file);
-        long curCacheSize = cacheSize.get();
-        while (curCacheSize + valueSize > sizeLimit) {
-            long freedSize = removeNext();
-            curCacheSize = cacheSize.addAndGet(-freedSize);
+    /**
+     * 统计 file 的大小并按限制淘汰，不修改 file 的内容引用和分块；索引未建立完成时只记录下来
+     */
+    private void index(File file) {
+        synchronized (indexLock) {
+            if (!indexReady) {
+                // 索引完成前 mightContain 总是返回 true，补做统计时再加入 Bloom filter
+                pendingFiles.add(file);
+                Long currentTime = System.currentTimeMillis();
+                file.setLastModified(currentTime);
+                lastUsageDates.put(file, currentTime);
+                return;
+            }
         }
-        cacheSize.addAndGet(valueSize);
+        CachePartition partition = partitionOf(file.getName());
+        synchronized (accountingLock) {
+            long valueSize = entrySize(file);
+            // 覆盖写只计算大小差值，不增加数量
+            Long oldSize = entrySizes.get(file);
+            long oldBytes = oldSize == null ? 0 : oldSize;
+            int added = oldSize == null ? 1 : 0;
+            if (partition != null) {
+                while (partition.count() + added > partition.getCountLimit()
+                        || partition.size() - oldBytes + valueSize > partition.getSizeLimit()) {
+                    if (evictOldest(partition, true, file) < 0) {
+                        break;
+                    }
+                }
+            }
+            while (cacheCount.get() + added > countLimit
+                    || cacheSize.get() - oldBytes + valueSize > sizeLimit) {
+                if (evictForGlobalLimit(file) < 0) {
+                    break;
+                }
+            }
+            indexEntry(file, valueSize);
 
-        Long currentTime = System.currentTimeMillis();
-        file.setLastModified(currentTime);
-        lastUsageDates.put(file, currentTime);
+            Long currentTime = System.currentTimeMillis();
+            file.setLastModified(currentTime);
+            lastUsageDates.put(file, currentTime);
+        }
     }
 
     public File get(String key) {
         File file = newFile(key);
         Long currentTime = System.currentTimeMillis();
+        // 只更新已在索引中的文件；不在索引中的文件（不存在或刚被淘汰）不能重新加入，否则 removeNext 会选中它们
         file.setLastModified(currentTime);
-        lastUsageDates.put(file, currentTime);
+        touch(file, currentTime);
 
         return file;
     }
 
+    /**
+     * 保存 key 数据的文件：去重保存的数据返回共享的内容文件（不含时间信息），
+     * 分块保存的数据没有单个文件，返回 null；合并写入中的值先落盘
+     *
+     * @return 数据文件，key 不存在或内容已不存在时返回 null
+     */
+    public File dataFile(String key) {
+        flushPendingWrite(key);
+        File file = newFile(key);
+        if (!file.exists()) {
+            return null;
+        }
+        // 更大的文件不可能是引用或清单
+        long length = file.length();
+        if (length > Math.max(BlobStore.POINTER_LENGTH, ChunkStore.MAX_MANIFEST_LENGTH)
+                + MAX_DATE_INFO_LENGTH) {
+            return file;
+        }
+        RandomAccessFile RAFile = null;
+        try {
+            RAFile = new RandomAccessFile(file, "r");
+            byte[] data = new byte[(int) RAFile.length()];
+            RAFile.readFully(data);
+            int headerLength = dateInfoLength(data);
+            if (ChunkStore.parseManifest(data, headerLength) != null) {
+                return null;
+            }
+            String hash = BlobStore.parsePointer(data, headerLength);
+            if (hash == null) {
+                return file;
+            }
+            File blob = blobStore.file(hash);
+            return blob.exists() ? blob : null;
+        } catch (IOException e) {
+            // 读取期间被删除或淘汰
+            return null;
+        } finally {
+            if (RAFile != null) {
+                try {
+                    RAFile.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private void touchInMemory(File file) {
+        if (touch(file, System.currentTimeMillis())) {
+            touchedInMemory.add(file);
+        }
+    }
+
+    /**
+     * @return file 是否在 lastUsageDates 中，不在时不会加入
+     */
+    private boolean touch(File file, long time) {
+        synchronized (lastUsageDates) {
+            if (!lastUsageDates.containsKey(file)) {
+                return false;
+            }
+            lastUsageDates.put(file, time);
+            return true;
+        }
+    }
+
+    /**
+     * 写入合并窗口中尚未落盘的数据，并把只在内存中更新的使用时间写回文件
+     */
+    public void flush() {
+        flushPendingWrites();
+        for (File file : touchedInMemory) {
+            touchedInMemory.remove(file);
+            Long lastUsage = lastUsageDates.get(file);
+            if (lastUsage != null) {
+                file.setLastModified(lastUsage);
+            }
+        }
+    }
+
+    /**
+     * flush 后停止后台线程并释放堆外内存。正在删除的回收目录会在下次启动时继续删除。
+     * close 之后不应再使用该实例。
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        coalesceWindowMillis = 0;
+        flush();
+        closed = true;
+        flushExecutor.shutdown();
+        backgroundExecutor.shutdown();
+        try {
+            if (!backgroundExecutor.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                Log.w(TAG, "background work still running after close: " + cacheDir.getAbsolutePath());
+                // 后台的清理在 accountingLock 中检查 closed：已经开始的清理在这里等它完成，之后的清理都会跳过
+                synchronized (accountingLock) {
+                    Log.w(TAG, "destructive cleanup disabled for " + cacheDir.getAbsolutePath());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        chunkStore.close();
+        disableOffHeapTier();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * @return false 表示 key 一定不存在；索引建立完成前总是返回 true
+     */
+    public boolean mightContain(String key) {
+        if (!isIndexReady()) {
+            return true;
+        }
+        synchronized (bloomLock) {
+            return bloomFilter.mightContain(key);
+        }
+    }
+
+    private void bloomAdd(String key) {
+        synchronized (bloomLock) {
+            bloomFilter.add(key);
+            if (bloomFilter.size() > bloomFilter.capacity()) {
+                rebuildBloomFilter(bloomFilter.capacity() * 2);
+            }
+        }
+    }
+
+    private void bloomRemove(String key) {
+        synchronized (bloomLock) {
+            bloomFilter.remove(key);
+        }
+    }
+
+    /**
+     * 按 entrySizes 中的文件重建 Bloom filter
+     */
+    private void rebuildBloomFilter(int capacity) {
+        synchronized (accountingLock) {
+            synchronized (bloomLock) {
+                BloomFilter filter = new BloomFilter(capacity, BLOOM_FPP);
+                for (File file : entrySizes.keySet()) {
+                    filter.add(file.getName());
+                }
+                bloomFilter = filter;
+            }
+        }
+    }
+
     /*
     public File newFile(String key) {
         return new File(cacheDir, key.hashCode() + "");
@@ -157,81 +758,461 @@ public class CacheService {
     }
 
     public boolean remove(String key) {
-        File image = get(key);
-        return image.delete();
+        pendingWrites.remove(key);
+        File image = newFile(key);
+        boolean deleted;
+        // 与 buildIndex 的登记互斥，扫描结果不会把刚删除的文件重新记入统计
+        synchronized (accountingLock) {
+            forget(image);
+            deleted = image.delete();
+        }
+        // 删除之后再失效，同时读取的线程不会把已删除的数据放回堆外缓存
+        invalidateOffHeap(key);
+        return deleted;
     }
 
-    public void clear() {
-        lastUsageDates.clear();
-        cacheSize.set(0);
-        File[] files = cacheDir.listFiles();
-        if (files != null) {
-            for (File f : files) {
-                f.delete();
+    /**
+     * 清空缓存：把当前目录改名为回收目录后立即重建空目录，旧文件在后台线程删除
+     */
+    public synchronized void clear() {
+        synchronized (indexLock) {
+            indexGeneration++;
+            pendingFiles.clear();
+        }
+        pendingWrites.clear();
+        File trashDir = new File(cacheDir.getParentFile(),
+                cacheDir.getName() + TRASH_SUFFIX + System.nanoTime());
+        boolean swapped = cacheDir.renameTo(trashDir);
+        discardDir(blobStore.getBlobDir(), "blobs-");
+        discardDir(chunkStore.getChunkDir(), "chunks-");
+        synchronized (accountingLock) {
+            lastUsageDates.clear();
+            entrySizes.clear();
+            blobRefs.clear();
+            chunkRefs.clear();
+            blobStore.reset();
+            cacheSize.set(0);
+            cacheCount.set(0);
+            for (CachePartition partition : partitions) {
+                partition.resetUsage();
+            }
+        }
+        synchronized (bloomLock) {
+            bloomFilter = new BloomFilter(bloomFilter.capacity(), BLOOM_FPP);
+        }
+        SlabMemoryCache tier = offHeapTier;
+        if (tier != null) {
+            tier.clear();
+        }
+        if (swapped) {
+            // 同时写入的线程也可能已经重建了目录
+            if (!cacheDir.mkdirs() && !cacheDir.isDirectory()) {
+                Log.w(TAG, "can't make dirs in " + cacheDir.getAbsolutePath());
+            }
+            deleteInBackground(trashDir);
+        } else {
+            // 改名失败（例如跨文件系统），退回到同步逐个删除
+            File[] files = cacheDir.listFiles();
+            if (files != null) {
+                for (File f : files) {
+                    deleteRecursively(f);
+                }
             }
         }
     }
 
     /**
-     * 移除旧的文件
+     * 把 dir 改名为回收目录后在后台删除，改名失败时同步删除
+     */
+    private void discardDir(File dir, String tag) {
+        File trashDir = new File(cacheDir.getParentFile(),
+                cacheDir.getName() + TRASH_SUFFIX + tag + System.nanoTime());
+        if (dir.renameTo(trashDir)) {
+            deleteInBackground(trashDir);
+        } else {
+            deleteRecursively(dir);
+        }
+    }
+
+    /**
+     * 删除上次进程中 clear() 遗留、尚未删完的回收目录
+     */
+    private void deleteLeftoverTrash() {
+        File parent = cacheDir.getParentFile();
+        File[] siblings = parent == null ? null : parent.listFiles();
+        if (siblings == null) {
+            return;
+        }
+        String prefix = cacheDir.getName() + TRASH_SUFFIX;
+        for (File sibling : siblings) {
+            if (sibling.isDirectory() && sibling.getName().startsWith(prefix)) {
+                deleteInBackground(sibling);
+            }
+        }
+    }
+
+    /**
+     * 删除上次进程中写入中断留下的临时文件
+     */
+    private void deleteLeftoverTemps() {
+        File[] temps = tempDir.listFiles();
+        if (temps == null) {
+            return;
+        }
+        // 与 close() 的检查同步，close 返回后不会再删除
+        synchronized (accountingLock) {
+            if (closed) {
+                return;
+            }
+            for (File temp : temps) {
+                if (!writingTemps.contains(temp.getName())) {
+                    temp.delete();
+                }
+            }
+        }
+    }
+
+    private void deleteInBackground(final File dir) {
+        try {
+            backgroundExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    deleteTrash(dir);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // 已经 close，回收目录在下次启动时删除
+        }
+    }
+
+    /**
+     * 与 deleteRecursively 相同，但 close 之后立即停止，剩下的部分在下次启动时删除
+     */
+    private void deleteTrash(File file) {
+        if (closed) {
+            return;
+        }
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteTrash(child);
+            }
+        }
+        if (!closed && !file.delete() && file.exists()) {
+            Log.w(TAG, "can't delete " + file.getAbsolutePath());
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        if (!file.delete() && file.exists()) {
+            Log.w(TAG, "can't delete " + file.getAbsolutePath());
+        }
+    }
+
+    /**
+     * 移除旧的文件，cacheSize 和 cacheCount 会同时扣除
      *
-     * @return
+     * @return 释放的字节数
      */
     public long removeNext() {
-        if (lastUsageDates.isEmpty()) {
-            return 0;
+        synchronized (accountingLock) {
+            return Math.max(0, evictOldest(null, false, null));
         }
+    }
+
+    /**
+     * 超出全局限制时挑选淘汰对象：先淘汰超出配额的分区，再淘汰未分区的数据，
+     * 配额以内的分区只在没有其它数据可淘汰时才按全局 LRU 淘汰。调用方需持有 accountingLock
+     *
+     * @return 释放的字节数，没有可淘汰的文件时返回 -1
+     */
+    private long evictForGlobalLimit(File exclude) {
+        for (CachePartition partition : partitions) {
+            if (partition.size() > partition.getSizeLimit()
+                    || partition.count() > partition.getCountLimit()) {
+                long freed = evictOldest(partition, true, exclude);
+                if (freed >= 0) {
+                    return freed;
+                }
+            }
+        }
+        long freed = evictOldest(null, true, exclude);
+        if (freed >= 0) {
+            return freed;
+        }
+        return evictOldest(null, false, exclude);
+    }
 
+    /**
+     * 淘汰最久未使用的文件
+     *
+     * @param partition         inPartitionOnly 为 true 时只在该分区（null 表示未分区的数据）中挑选
+     * @param inPartitionOnly   是否只在 partition 中挑选
+     * @param exclude           不参与挑选的文件，通常是正在写入的文件
+     * @return 释放的字节数，没有可淘汰的文件时返回 -1
+     */
+    private long evictOldest(CachePartition partition, boolean inPartitionOnly, File exclude) {
         Long oldestUsage = null;
         File mostLongUsedFile = null;
-        Set<Map.Entry<File, Long>> entries = lastUsageDates.entrySet();
         synchronized (lastUsageDates) {
-            for (Map.Entry<File, Long> entry : entries) {
-                if (mostLongUsedFile == null) {
-                    mostLongUsedFile = entry.getKey();
+            for (Map.Entry<File, Long> entry : lastUsageDates.entrySet()) {
+                File file = entry.getKey();
+                if (file.equals(exclude)
+                        || (inPartitionOnly && partitionOf(file.getName()) != partition)) {
+                    continue;
+                }
+                if (mostLongUsedFile == null || entry.getValue() < oldestUsage) {
                     oldestUsage = entry.getValue();
-                } else {
-                    Long lastValueUsage = entry.getValue();
-                    if (lastValueUsage < oldestUsage) {
-                        oldestUsage = lastValueUsage;
-                        mostLongUsedFile = entry.getKey();
-                    }
+                    mostLongUsedFile = file;
                 }
             }
         }
-
-        long fileSize = calculateSize(mostLongUsedFile);
-        if (mostLongUsedFile.delete()) {
-            lastUsageDates.remove(mostLongUsedFile);
+        if (mostLongUsedFile == null) {
+            return -1;
         }
+
+        // 无论删除是否成功都移出索引，避免同一个文件被反复选中
+        long fileSize = forget(mostLongUsedFile);
+        mostLongUsedFile.delete();
+        invalidateOffHeap(mostLongUsedFile.getName());
         return fileSize;
     }
 
+    /**
+     * 开启堆外缓存层，getBinary 读过的数据会保存在 direct ByteBuffer 中，再次读取时不访问磁盘
+     *
+     * @param maxBytes 堆外内存上限，单位：字节
+     */
+    public synchronized void enableOffHeapTier(long maxBytes) {
+        offHeapTier = new SlabMemoryCache(maxBytes);
+    }
+
+    public synchronized void disableOffHeapTier() {
+        SlabMemoryCache tier = offHeapTier;
+        offHeapTier = null;
+        if (tier != null) {
+            tier.clear();
+        }
+    }
+
+    private void invalidateOffHeap(String key) {
+        SlabMemoryCache tier = offHeapTier;
+        if (tier != null) {
+            tier.remove(key);
+        }
+    }
+
     public long calculateSize(File file) {
         return file.length();
     }
 
     public void setKeyValueByte(String key, byte[] value) {
+        pendingWrites.remove(key);
+        int minChunked = chunkThreshold;
+        if (minChunked > 0 && value != null && value.length >= minChunked
+                && setKeyValueChunked(key, value)) {
+            return;
+        }
+        int threshold = dedupThreshold;
+        if (threshold > 0 && value != null && value.length >= threshold
+                && setKeyValueBlob(key, value)) {
+            return;
+        }
         File file = newFile(key);
+        if (writeAtomically(file, value, value == null ? 0 : value.length, null)) {
+            put(file);
+        }
+    }
+
+    /**
+     * 先写入临时文件再改名为 file：同时读取的线程只会看到旧数据或新数据，不会读到写了一半的文件
+     *
+     * @param tail 写在 head[0, headLength) 之后的数据，可以为 null
+     * @return 是否写入成功，失败时 file 保持原样
+     */
+    private boolean writeAtomically(File file, byte[] head, int headLength, byte[] tail) {
+        String name = System.nanoTime() + "-" + tempCounter.incrementAndGet();
+        writingTemps.add(name);
+        File tmp = new File(tempDir, name);
         FileOutputStream out = null;
         try {
-            out = new FileOutputStream(file);
-            out.write(value);
+            try {
+                out = new FileOutputStream(tmp);
+            } catch (FileNotFoundException e) {
+                // 目录只在第一次写入失败时创建，正常写入不需要额外检查
+                if (!tempDir.mkdirs() && !tempDir.isDirectory()) {
+                    throw e;
+                }
+                out = new FileOutputStream(tmp);
+            }
+            out.write(head, 0, headLength);
+            if (tail != null) {
+                out.write(tail);
+            }
+            out.close();
+            out = null;
+            if (tmp.renameTo(file)) {
+                return true;
+            }
+            // clear() 刚把缓存目录换走、还没有重建时，重建后再试一次
+            File parent = file.getParentFile();
+            if (!parent.isDirectory() && (parent.mkdirs() || parent.isDirectory())
+                    && tmp.renameTo(file)) {
+                return true;
+            }
+            Log.w(TAG, "can't rename " + tmp.getAbsolutePath() + " to " + file.getAbsolutePath());
         } catch (Exception e) {
             e.printStackTrace();
         } finally {
             if (out != null) {
                 try {
-                    out.flush();
                     out.close();
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
             }
-            put(file);
+            // 改名成功后临时文件已不存在
+            tmp.delete();
+            writingTemps.remove(name);
+        }
+        return false;
+    }
+
+    /**
+     * 开启分块保存：不小于 minSize 的 byte 数据切成 chunkSize 大小的块，由线程池并行读写
+     *
+     * @param minSize   分块的最小数据长度，单位：字节，<= 0 表示关闭（已分块的数据仍可正常读取）
+     * @param chunkSize 每块的大小，单位：字节
+     */
+    public void setChunking(int minSize, int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize <= 0: " + chunkSize);
+        }
+        this.chunkSize = chunkSize;
+        chunkThreshold = Math.max(0, minSize);
+    }
+
+    /**
+     * 分块保存数据；时间信息和清单一起留在 key 文件中
+     *
+     * @return 是否保存成功，失败时调用方按普通方式保存
+     */
+    private boolean setKeyValueChunked(String key, byte[] value) {
+        int headerLength = dateInfoLength(value);
+        String id = chunkStore.newId();
+        try {
+            ChunkStore.Manifest manifest = chunkStore.write(id, value, headerLength, chunkSize);
+            return commitChunks(key, value, headerLength, manifest);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            chunkStore.finish(id);
+        }
+    }
+
+    /**
+     * 从输入流分块保存数据，长度不受 byte[] 大小限制。in 由调用方关闭。
+     *
+     * @param saveTime 保存时间，单位：秒，<= 0 表示不过期
+     * @return 是否保存成功，失败时原来的数据保持不变
+     */
+    public boolean setKeyValueStream(String key, InputStream in, int saveTime) {
+        pendingWrites.remove(key);
+        byte[] header = saveTime > 0 ? createDateInfo(saveTime).getBytes() : new byte[0];
+        String id = chunkStore.newId();
+        try {
+            ChunkStore.Manifest manifest = chunkStore.write(id, in, chunkSize);
+            return commitChunks(key, header, header.length, manifest);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            chunkStore.finish(id);
+        }
+    }
+
+    /**
+     * 所有块写完后才原子地写入清单，读取和淘汰都不会看到只写了一部分的数据；清单写入失败时删除这些块
+     */
+    private boolean commitChunks(String key, byte[] header, int headerLength,
+                                 ChunkStore.Manifest manifest) {
+        File file = newFile(key);
+        if (!writeAtomically(file, header, headerLength, manifest.encode())) {
+            chunkStore.delete(manifest);
+            return false;
+        }
+        put(file, null, manifest);
+        return true;
+    }
+
+
+    /**
+     * 开启按内容去重：不小于 minSize 的 byte 数据按内容只保存一份，多个 key 共享
+     *
+     * @param minSize 去重的最小数据长度，单位：字节，<= 0 表示关闭（已去重的数据仍可正常读取）
+     */
+    public void setDeduplication(int minSize) {
+        dedupThreshold = Math.max(0, minSize);
+    }
+
+    /**
+     * 把数据保存为内容引用；时间信息留在 key 文件中，这样同样的内容不同的有效期也能共享
+     *
+     * @return 是否保存成功，失败时调用方按普通方式保存
+     */
+    private boolean setKeyValueBlob(String key, byte[] value) {
+        int headerLength = dateInfoLength(value);
+        String hash = BlobStore.hash(value, headerLength);
+        // 写内容文件时不持有 accountingLock，其它读写和淘汰不需要等待磁盘写入
+        long added = blobStore.acquire(hash, value, headerLength);
+        if (added < 0) {
+            return false;
+        }
+        synchronized (accountingLock) {
+            cacheSize.addAndGet(added);
         }
+        File file = newFile(key);
+        if (!writeAtomically(file, value, headerLength, BlobStore.newPointer(hash))) {
+            synchronized (accountingLock) {
+                cacheSize.addAndGet(-blobStore.release(hash));
+            }
+            return false;
+        }
+        put(file, hash, null);
+        return true;
     }
 
+    /**
+     * key 文件是内容引用或分块清单时读出实际内容，时间信息保持不变
+     *
+     * @return 实际内容；引用的内容已不存在时返回 null
+     */
+    private byte[] resolveReference(byte[] data) throws IOException {
+        int headerLength = dateInfoLength(data);
+        ChunkStore.Manifest manifest = ChunkStore.parseManifest(data, headerLength);
+        if (manifest != null) {
+            return chunkStore.readFully(manifest, copyOfRange(data, 0, headerLength));
+        }
+        String hash = BlobStore.parsePointer(data, headerLength);
+        if (hash == null) {
+            return data;
+        }
+        byte[] blob = blobStore.read(hash);
+        if (blob == null) {
+            return null;
+        }
+        byte[] resolved = new byte[headerLength + blob.length];
+        System.arraycopy(data, 0, resolved, 0, headerLength);
+        System.arraycopy(blob, 0, resolved, headerLength, blob.length);
+        return resolved;
+    }
 
     public synchronized void setKeyValueObject(String key, Serializable value, int saveTime) {
         ByteArrayOutputStream baos = null;
@@ -256,30 +1237,81 @@ public class CacheService {
         }
     }
 
-    public synchronized void setKeyValue(String key, String value) {
-        File file = newFile(key);
-        BufferedWriter out = null;
-        try {
-            out = new BufferedWriter(new FileWriter(file), value.length());
-            out.write(value);
-        } catch (Exception e) {
-            e.getStackTrace();
-        } finally {
-            if (out != null) {
-                try {
-                    out.flush();
-                    out.close();
-                } catch (IOException e) {
+    public void setKeyValue(String key, String value) {
+        if (coalesceWindowMillis > 0) {
+            coalesceKeyValue(key, value);
+        } else {
+            writeKeyValue(key, value);
+        }
+    }
 
-                }
+    /**
+     * 开启/关闭合并写
+     *
+     * @param windowMillis 合并窗口，单位：毫秒，<= 0 表示关闭并立即写入所有未落盘的数据
+     */
+    public void setWriteCoalescing(long windowMillis) {
+        coalesceWindowMillis = Math.max(0, windowMillis);
+        if (windowMillis <= 0) {
+            flushPendingWrites();
+        }
+    }
+
+    /**
+     * 立即写入所有合并窗口中尚未落盘的数据
+     */
+    public void flushPendingWrites() {
+        for (String key : pendingWrites.keySet()) {
+            flushPendingWrite(key);
+        }
+    }
+
+    private void coalesceKeyValue(final String key, String value) {
+        // 只有窗口内的第一次写需要安排落盘，之后的写只替换内存中的值
+        if (pendingWrites.put(key, value) == null) {
+            try {
+                flushExecutor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        flushPendingWrite(key);
+                    }
+                }, coalesceWindowMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // 已经 close，直接写入
+                flushPendingWrite(key);
             }
-            put(file);
         }
+    }
 
+    private synchronized void flushPendingWrite(String key) {
+        String value = pendingWrites.remove(key);
+        if (value != null) {
+            writeKeyValue(key, value);
+        }
+    }
 
+    private synchronized void writeKeyValue(String key, String value) {
+        File file = newFile(key);
+        byte[] data = value.getBytes();
+        if (writeAtomically(file, data, data.length, null)) {
+            put(file);
+        }
     }
 
     public String getValue(String key) {
+        String pending = pendingWrites.get(key);
+        if (pending != null) {
+            // 与从文件按行读取的结果保持一致
+            pending = pending.replace("\r", "").replace("\n", "");
+            if (!isDue(pending)) {
+                return clearDateInfo(pending);
+            }
+            remove(key);
+            return null;
+        }
+        if (!mightContain(key)) {
+            return null;
+        }
         File file = get(key);
         if (file.exists()) {
             boolean removeFile = false;
@@ -347,15 +1379,56 @@ public class CacheService {
     }
 
     public byte[] getBinary(String key) {
+        // 合并写入还没有落盘时文件中是旧值，以内存中的值为准
+        String pending = pendingWrites.get(key);
+        if (pending != null) {
+            byte[] data = pending.getBytes();
+            if (!isDue(data)) {
+                return clearDateInfo(data);
+            }
+            remove(key);
+            return null;
+        }
         RandomAccessFile RAFile = null;
         boolean removeFile = false;
         try {
-            File file = get(key);
-            if (!file.exists())
-                return null;
-            RAFile = new RandomAccessFile(file, "r");
-            byte[] byteArray = new byte[(int) RAFile.length()];
-            RAFile.read(byteArray);
+            SlabMemoryCache tier = offHeapTier;
+            // 在读取磁盘之前取版本号，读取期间被覆盖写或删除时不放入堆外缓存
+            long tierVersion = tier == null ? 0 : tier.version(key);
+            byte[] byteArray = tier == null ? null : tier.get(key);
+            if (byteArray != null) {
+                // 命中堆外缓存时只更新内存中的使用时间，不访问磁盘
+                touchInMemory(newFile(key));
+            } else {
+                if (!mightContain(key))
+                    return null;
+                File file = get(key);
+                if (!file.exists())
+                    return null;
+                for (int attempt = 0; ; attempt++) {
+                    RAFile = new RandomAccessFile(file, "r");
+                    byteArray = new byte[(int) RAFile.length()];
+                    RAFile.readFully(byteArray);
+                    RAFile.close();
+                    RAFile = null;
+                    try {
+                        byteArray = resolveReference(byteArray);
+                        break;
+                    } catch (FileNotFoundException e) {
+                        // 读取期间被覆盖写，旧的块已删除，重新读取一次新的清单
+                        if (attempt > 0 || !file.exists()) {
+                            return null;
+                        }
+                    }
+                }
+                if (byteArray == null) {
+                    removeFile = true;
+                    return null;
+                }
+                if (tier != null) {
+                    tier.putIfUnchanged(key, byteArray, tierVersion);
+                }
+            }
             if (!isDue(byteArray)) {
                 return clearDateInfo(byteArray);
             } else {
@@ -378,6 +1451,489 @@ public class CacheService {
         }
     }
 
+    /**
+     * 读取数据的一部分，不会把整个文件读入内存，也不会放入堆外缓存
+     *
+     * @param key
+     * @param offset 数据内的起始位置（不含时间信息）
+     * @param length 最多读取的字节数
+     * @return 读取到的数据，到达末尾时可能少于 length；key 不存在、已过期或 offset 超出末尾时返回 null
+     */
+    public byte[] getRange(String key, long offset, int length) {
+        if (length < 0) {
+            throw new IllegalArgumentException("length < 0: " + length);
+        }
+        if (offset < 0) {
+            throw new IllegalArgumentException("offset < 0: " + offset);
+        }
+        // 缓冲区在知道数据长度后才分配，getRange(key, 0, Integer.MAX_VALUE) 只分配实际剩余的长度
+        ByteBuffer buffer = readRange(key, offset, length, null);
+        if (buffer == null) {
+            return null;
+        }
+        byte[] data = buffer.array();
+        return buffer.position() == data.length ? data : copyOfRange(data, 0, buffer.position());
+    }
+
+    /**
+     * 从数据的 position 处开始读取，最多填满 dst 的剩余空间
+     *
+     * @param key
+     * @param position 数据内的起始位置（不含时间信息）
+     * @param dst      读取的数据写入 dst，dst 的 position 随之前进
+     * @return 读取的字节数；key 不存在、已过期或 position 超出末尾时返回 -1
+     */
+    public int read(String key, long position, ByteBuffer dst) {
+        if (position < 0) {
+            throw new IllegalArgumentException("position < 0: " + position);
+        }
+        int begin = dst.position();
+        return readRange(key, position, 0, dst) == null ? -1 : dst.position() - begin;
+    }
+
+    /**
+     * read 和 getRange 的实现
+     *
+     * @param length dst 为 null 时最多读取的字节数
+     * @param dst    为 null 时按 min(length, 剩余数据长度) 分配
+     * @return 写入数据的缓冲区，position 已前进；key 不存在、已过期或 position 超出末尾时返回 null
+     */
+    private ByteBuffer readRange(String key, long position, int length, ByteBuffer dst) {
+        String pending = pendingWrites.get(key);
+        if (pending != null) {
+            byte[] data = pending.getBytes();
+            if (isDue(data)) {
+                return null;
+            }
+            int start = dateInfoLength(data);
+            if (position >= data.length - start) {
+                return null;
+            }
+            if (dst == null) {
+                dst = ByteBuffer.allocate((int) Math.min(length, data.length - start - position));
+            }
+            copyRange(data, start, position, dst);
+            return dst;
+        }
+        if (!mightContain(key)) {
+            return null;
+        }
+        File file = newFile(key);
+        RandomAccessFile RAFile = null;
+        boolean removeFile = false;
+        try {
+            RAFile = new RandomAccessFile(file, "r");
+            FileChannel channel = RAFile.getChannel();
+            long fileLength = channel.size();
+            byte[] head = new byte[(int) Math.min(fileLength, MAX_DATE_INFO_LENGTH)];
+            readFully(channel, ByteBuffer.wrap(head), 0);
+            if (isDue(head)) {
+                removeFile = true;
+                return null;
+            }
+            long start = dateInfoLength(head);
+            long payloadLength = fileLength - start;
+            if (payloadLength <= Math.max(BlobStore.POINTER_LENGTH, ChunkStore.MAX_MANIFEST_LENGTH)) {
+                byte[] payload = new byte[(int) payloadLength];
+                readFully(channel, ByteBuffer.wrap(payload), start);
+                ChunkStore.Manifest manifest = ChunkStore.parseManifest(payload, 0);
+                if (manifest != null) {
+                    // 分块保存的数据，只读取覆盖该范围的块
+                    touchInMemory(file);
+                    if (position >= manifest.length()) {
+                        return null;
+                    }
+                    if (dst == null) {
+                        dst = ByteBuffer.allocate((int) Math.min(length, manifest.length() - position));
+                    }
+                    chunkStore.read(manifest, position, dst);
+                    return dst;
+                }
+                String hash = BlobStore.parsePointer(payload, 0);
+                if (hash != null) {
+                    // 去重保存的数据，从共享的内容文件中读取
+                    RAFile.close();
+                    RAFile = new RandomAccessFile(blobStore.file(hash), "r");
+                    channel = RAFile.getChannel();
+                    start = 0;
+                    payloadLength = channel.size();
+                }
+            }
+            // 只更新内存中的使用时间
+            touchInMemory(file);
+            if (position >= payloadLength) {
+                return null;
+            }
+            if (dst == null) {
+                dst = ByteBuffer.allocate((int) Math.min(length, payloadLength - position));
+            }
+            int toRead = (int) Math.min(dst.remaining(), payloadLength - position);
+            ByteBuffer target = dst.duplicate();
+            target.limit(target.position() + toRead);
+            int read = readFully(channel, target, start + position);
+            dst.position(dst.position() + read);
+            return dst;
+        } catch (IOException e) {
+            // 包括文件不存在
+            return null;
+        } finally {
+            if (RAFile != null) {
+                try {
+                    RAFile.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            if (removeFile)
+                remove(key);
+        }
+    }
+
+    /**
+     * 把数据按顺序写入 out，分块保存的数据边读边写（后面的块并行预读），不会整体读入内存，
+     * 因此可以读取超过 byte[] 长度上限的数据
+     *
+     * @return key 不存在或已过期时返回 false
+     */
+    public boolean getStream(String key, OutputStream out) throws IOException {
+        String pending = pendingWrites.get(key);
+        if (pending != null) {
+            byte[] data = pending.getBytes();
+            if (isDue(data)) {
+                return false;
+            }
+            int start = dateInfoLength(data);
+            out.write(data, start, data.length - start);
+            return true;
+        }
+        if (!mightContain(key)) {
+            return false;
+        }
+        File file = newFile(key);
+        if (!file.exists()) {
+            return false;
+        }
+        RandomAccessFile RAFile = null;
+        boolean removeFile = false;
+        try {
+            RAFile = new RandomAccessFile(file, "r");
+            long fileLength = RAFile.length();
+            byte[] head = new byte[(int) Math.min(fileLength,
+                    MAX_DATE_INFO_LENGTH + ChunkStore.MAX_MANIFEST_LENGTH)];
+            RAFile.readFully(head);
+            if (isDue(head)) {
+                removeFile = true;
+                return false;
+            }
+            int start = dateInfoLength(head);
+            touchInMemory(file);
+            if (head.length == fileLength) {
+                ChunkStore.Manifest manifest = ChunkStore.parseManifest(head, start);
+                if (manifest != null) {
+                    chunkStore.copyTo(manifest, out);
+                    return true;
+                }
+                byte[] data = resolveReference(head);
+                if (data == null) {
+                    removeFile = true;
+                    return false;
+                }
+                out.write(data, start, data.length - start);
+                return true;
+            }
+            RAFile.seek(start);
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = RAFile.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+            }
+            return true;
+        } finally {
+            if (RAFile != null) {
+                try {
+                    RAFile.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            if (removeFile)
+                remove(key);
+        }
+    }
+
+    private static int copyRange(byte[] data, int start, long position, ByteBuffer dst) {
+        long payloadLength = data.length - start;
+        if (position >= payloadLength) {
+            return -1;
+        }
+        int toRead = (int) Math.min(dst.remaining(), payloadLength - position);
+        dst.put(data, (int) (start + position), toRead);
+        return toRead;
+    }
+
+    /**
+     * 使用定位读取填满 dst，直到 dst 写满或到达文件末尾
+     */
+    private static int readFully(FileChannel channel, ByteBuffer dst, long position) throws IOException {
+        int total = 0;
+        while (dst.hasRemaining()) {
+            int read = channel.read(dst, position + total);
+            if (read < 0) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    /**
+     * 导出所有未过期的数据。格式：magic，然后每条数据依次为 true、key、长度（long）、原始内容
+     * （含时间信息，导入后保持原来的过期时间），最后以 false 结束。
+     *
+     * @return 导出的数据条数
+     */
+    public int exportSnapshot(OutputStream out) throws IOException {
+        flushPendingWrites();
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(out));
+        dos.writeInt(SNAPSHOT_MAGIC);
+        int count = 0;
+        File[] cachedFiles = cacheDir.listFiles();
+        if (cachedFiles != null) {
+            for (File cachedFile : cachedFiles) {
+                byte[] data = readSnapshotEntry(cachedFile);
+                if (data == null) {
+                    continue;
+                }
+                int headerLength = dateInfoLength(data);
+                ChunkStore.Manifest manifest = ChunkStore.parseManifest(data, headerLength);
+                if (manifest != null && headerLength + manifest.length() > ChunkStore.MAX_ARRAY_SIZE) {
+                    // 超过 byte[] 上限的分块数据从块文件直接写出；写到一半失败时快照已不完整，只能抛出异常
+                    dos.writeBoolean(true);
+                    dos.writeUTF(cachedFile.getName());
+                    dos.writeLong(headerLength + manifest.length());
+                    dos.write(data, 0, headerLength);
+                    chunkStore.copyTo(manifest, dos);
+                    count++;
+                    continue;
+                }
+                try {
+                    data = resolveReference(data);
+                } catch (IOException e) {
+                    // 导出过程中被覆盖写或淘汰
+                    continue;
+                }
+                if (data == null) {
+                    continue;
+                }
+                dos.writeBoolean(true);
+                dos.writeUTF(cachedFile.getName());
+                dos.writeLong(data.length);
+                dos.write(data);
+                count++;
+            }
+        }
+        dos.writeBoolean(false);
+        dos.flush();
+        return count;
+    }
+
+    /**
+     * 读取 key 文件本身的内容，内容引用和分块清单由调用方解析
+     *
+     * @return 已过期、已删除或不是普通文件时返回 null
+     */
+    private byte[] readSnapshotEntry(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        RandomAccessFile RAFile = null;
+        try {
+            RAFile = new RandomAccessFile(file, "r");
+            byte[] data = new byte[(int) RAFile.length()];
+            RAFile.readFully(data);
+            if (isDue(data)) {
+                return null;
+            }
+            return data;
+        } catch (IOException e) {
+            // 导出过程中被删除或淘汰
+            return null;
+        } finally {
+            if (RAFile != null) {
+                try {
+                    RAFile.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * 导入 exportSnapshot 导出的数据：直接写文件，全部写完后重建一次索引并按大小/数量限制淘汰，
+     * 不逐条调用 put。已存在的同名 key 会被覆盖，已过期的数据会被跳过。
+     *
+     * @return 导入的数据条数
+     */
+    public int importSnapshot(InputStream in) throws IOException {
+        try {
+            // 避免与后台的首次扫描同时修改索引
+            indexLatch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while waiting for index");
+        }
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(in));
+        int magic = dis.readInt();
+        if (magic != SNAPSHOT_MAGIC && magic != SNAPSHOT_MAGIC_V1) {
+            throw new IOException("not a cache snapshot");
+        }
+        int count = 0;
+        try {
+            while (dis.readBoolean()) {
+                String key = dis.readUTF();
+                long length = magic == SNAPSHOT_MAGIC_V1 ? dis.readInt() : dis.readLong();
+                if (length < 0 || key.length() == 0 || key.indexOf(File.separatorChar) >= 0
+                        || key.equals(".") || key.equals("..")) {
+                    throw new IOException("bad snapshot entry: " + key);
+                }
+                // 在分配内存之前检查，损坏的长度不会导致 OutOfMemoryError
+                if (length > sizeLimit) {
+                    throw new IOException("snapshot entry larger than cache size limit: "
+                            + key + ", " + length + " bytes");
+                }
+                if (length > ChunkStore.MAX_ARRAY_SIZE) {
+                    if (importChunked(key, dis, length)) {
+                        count++;
+                    }
+                    continue;
+                }
+                byte[] data = new byte[(int) length];
+                dis.readFully(data);
+                if (isDue(data)) {
+                    continue;
+                }
+                pendingWrites.remove(key);
+                File file = newFile(key);
+                // 先写临时文件再改名，写入失败时原来的数据保持不变
+                if (!writeAtomically(file, data, data.length, null)) {
+                    throw new IOException("can't import snapshot entry: " + key);
+                }
+                synchronized (accountingLock) {
+                    releaseBlobRef(file, null);
+                    releaseChunks(file, null);
+                }
+                invalidateOffHeap(key);
+                count++;
+            }
+        } finally {
+            if (count > 0) {
+                rebuildIndex();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 把超过 byte[] 上限的一条快照数据从输入流直接分块保存
+     *
+     * @return 是否导入；已过期的数据跳过并返回 false
+     */
+    private boolean importChunked(String key, DataInputStream dis, long length) throws IOException {
+        byte[] head = new byte[MAX_DATE_INFO_LENGTH];
+        dis.readFully(head);
+        int headerLength = dateInfoLength(head);
+        long remaining = length - head.length;
+        if (isDue(head)) {
+            while (remaining > 0) {
+                int skipped = dis.skipBytes((int) Math.min(remaining, Integer.MAX_VALUE));
+                if (skipped <= 0) {
+                    throw new EOFException("truncated snapshot entry: " + key);
+                }
+                remaining -= skipped;
+            }
+            return false;
+        }
+        pendingWrites.remove(key);
+        InputStream payload = new SequenceInputStream(
+                new ByteArrayInputStream(head, headerLength, head.length - headerLength),
+                new LimitedInputStream(dis, remaining));
+        String id = chunkStore.newId();
+        try {
+            ChunkStore.Manifest manifest = chunkStore.write(id, payload, chunkSize);
+            if (headerLength + manifest.length() != length) {
+                chunkStore.delete(manifest);
+                throw new EOFException("truncated snapshot entry: " + key);
+            }
+            if (!commitChunks(key, head, headerLength, manifest)) {
+                throw new IOException("can't import snapshot entry: " + key);
+            }
+        } finally {
+            chunkStore.finish(id);
+        }
+        invalidateOffHeap(key);
+        return true;
+    }
+
+    /**
+     * 最多读取 limit 个字节，之后返回 -1；关闭时不关闭底层的流
+     */
+    private static final class LimitedInputStream extends InputStream {
+        private final InputStream in;
+        private long remaining;
+
+        LimitedInputStream(InputStream in, long limit) {
+            this.in = in;
+            this.remaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = in.read();
+            if (b >= 0) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int read = in.read(b, off, (int) Math.min(len, remaining));
+            if (read > 0) {
+                remaining -= read;
+            }
+            return read;
+        }
+    }
+
+    /**
+     * 重新扫描目录建立索引，然后淘汰超出限制的数据
+     */
+    private void rebuildIndex() {
+        synchronized (accountingLock) {
+            calculateCacheSizeAndCacheCount();
+            for (CachePartition partition : partitions) {
+                while (partition.count() > partition.getCountLimit()
+                        || partition.size() > partition.getSizeLimit()) {
+                    if (evictOldest(partition, true, null) < 0) {
+                        break;
+                    }
+                }
+            }
+            while (cacheCount.get() > countLimit || cacheSize.get() > sizeLimit) {
+                if (evictForGlobalLimit(null) < 0) {
+                    break;
+                }
+            }
+        }
+    }
+
     public synchronized void appendContents(String sFileName, String sContent) {
         try {
 
@@ -458,6 +2014,13 @@ public class CacheService {
         return data;
     }
 
+    /**
+     * @return 时间信息（包括分隔符）的长度，没有时间信息时为 0
+     */
+    public int dateInfoLength(byte[] data) {
+        return hasDateInfo(data) ? indexOf(data, mSeparator) + 1 : 0;
+    }
+
     public boolean hasDateInfo(byte[] data) {
         return data != null && data.length > 15 && data[13] == '-'
                 && indexOf(data, mSeparator) > 14;
@@ -502,15 +2065,36 @@ public class CacheService {
         return currentTime + "-" + second + mSeparator;
     }
 
+    /**
+     * 设置 put(Bitmap) 默认使用的编码格式和质量，默认 PNG / 100
+     *
+     * @param format  编码格式：PNG、JPEG、WEBP
+     * @param quality 0-100，PNG 会忽略该值
+     */
+    public void setBitmapCompress(Bitmap.CompressFormat format, int quality) {
+        if (format == null || quality < 0 || quality > 100) {
+            throw new IllegalArgumentException("bad bitmap compress: " + format + ", " + quality);
+        }
+        bitmapFormat = format;
+        bitmapQuality = quality;
+    }
+
     /*
      * Bitmap → byte[]
      */
     public byte[] Bitmap2Bytes(Bitmap bm) {
+        return Bitmap2Bytes(bm, bitmapFormat, bitmapQuality);
+    }
+
+    /*
+     * Bitmap → byte[]，使用指定的编码格式和质量
+     */
+    public byte[] Bitmap2Bytes(Bitmap bm, Bitmap.CompressFormat format, int quality) {
         if (bm == null) {
             return null;
         }
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        bm.compress(Bitmap.CompressFormat.PNG, 100, baos);
+        bm.compress(format, quality, baos);
         return baos.toByteArray();
     }
 
@@ -518,12 +2102,64 @@ public class CacheService {
      * byte[] → Bitmap
      */
     public Bitmap Bytes2Bimap(byte[] b) {
-        if (b.length == 0) {
+        if (b == null || b.length == 0) {
             return null;
         }
         return BitmapFactory.decodeByteArray(b, 0, b.length);
     }
 
+    /*
+     * byte[] → Bitmap，按目标尺寸降采样解码
+     *
+     * reqWidth/reqHeight <= 0 表示不限制该方向；reusable 不为空时尝试复用其内存（inBitmap），
+     * 复用失败会退回到新分配。
+     */
+    public Bitmap Bytes2Bimap(byte[] b, int reqWidth, int reqHeight, Bitmap reusable) {
+        if (b == null || b.length == 0) {
+            return null;
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        if (reqWidth > 0 || reqHeight > 0) {
+            // 只读取宽高，不分配像素内存
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(b, 0, b.length, options);
+            options.inSampleSize = calculateInSampleSize(options.outWidth,
+                    options.outHeight, reqWidth, reqHeight);
+            options.inJustDecodeBounds = false;
+        }
+        if (reusable != null && reusable.isMutable() && !reusable.isRecycled()) {
+            options.inMutable = true;
+            options.inBitmap = reusable;
+            try {
+                return BitmapFactory.decodeByteArray(b, 0, b.length, options);
+            } catch (IllegalArgumentException e) {
+                // reusable 的大小或格式不兼容
+                options.inBitmap = null;
+            }
+        }
+        return BitmapFactory.decodeByteArray(b, 0, b.length, options);
+    }
+
+    /**
+     * 计算不小于目标尺寸的最大 2 的幂采样率
+     *
+     * @return inSampleSize，最小为 1
+     */
+    public static int calculateInSampleSize(int width, int height, int reqWidth, int reqHeight) {
+        int inSampleSize = 1;
+        if (width <= 0 || height <= 0) {
+            return inSampleSize;
+        }
+        int halfWidth = width / 2;
+        int halfHeight = height / 2;
+        while ((reqWidth <= 0 || halfWidth / inSampleSize >= reqWidth)
+                && (reqHeight <= 0 || halfHeight / inSampleSize >= reqHeight)
+                && (reqWidth > 0 || reqHeight > 0)) {
+            inSampleSize *= 2;
+        }
+        return inSampleSize;
+    }
+
     /*
      * Drawable → Bitmap
      */
@@ -0,0 +1,421 @@
+package tech.zhiqu.cache;
+
+import android.util.Log;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * 分块保存大数据：数据按固定大小切成多个块文件，由一个小线程池并行读写。
+ * <p/>
+ * 所有块写完后，CacheService 再把清单（manifest）原子地改名为 key 文件，因此读取和淘汰都不会看到写了一半的数据。
+ * 块文件名为 id.序号，同一份数据的块共用一个 id。
+ */
+public class ChunkStore {
+    private static final String TAG = "ChunkStore";
+    private static final byte[] MANIFEST_MAGIC = "\u0000chunks:".getBytes();
+    public static final int MAX_MANIFEST_LENGTH = 96;
+    public static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024; // 4 MB
+    public static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+    private final File chunkDir;
+    private final int parallelism;
+    private final ExecutorService ioPool;
+    private final Random random = new Random();
+    // 正在写入、尚未提交的 id，deleteUnreferenced 不会删除它们
+    private final Set<String> inFlight = Collections
+            .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    public ChunkStore(File chunkDir) {
+        this.chunkDir = chunkDir;
+        parallelism = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+        ioPool = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+            private int count;
+
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+                Thread t = new Thread(r, TAG + "-io-" + count++);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    public File getChunkDir() {
+        return chunkDir;
+    }
+
+    /**
+     * 分块数据的清单，保存在 key 文件中（时间信息之后）
+     */
+    public static final class Manifest {
+        final String id;
+        final int chunkSize;
+        final long length;
+
+        Manifest(String id, int chunkSize, long length) {
+            this.id = id;
+            this.chunkSize = chunkSize;
+            this.length = length;
+        }
+
+        public long length() {
+            return length;
+        }
+
+        int chunkCount() {
+            return (int) ((length + chunkSize - 1) / chunkSize);
+        }
+
+        int chunkLength(int index) {
+            return (int) Math.min(chunkSize, length - (long) index * chunkSize);
+        }
+
+        byte[] encode() {
+            byte[] body = (id + ":" + chunkSize + ":" + length).getBytes();
+            byte[] data = new byte[MANIFEST_MAGIC.length + body.length];
+            System.arraycopy(MANIFEST_MAGIC, 0, data, 0, MANIFEST_MAGIC.length);
+            System.arraycopy(body, 0, data, MANIFEST_MAGIC.length, body.length);
+            return data;
+        }
+    }
+
+    /**
+     * @return data 从 offset 开始是清单时返回清单，否则返回 null
+     */
+    public static Manifest parseManifest(byte[] data, int offset) {
+        int length = data == null ? 0 : data.length - offset;
+        if (length <= MANIFEST_MAGIC.length || length > MAX_MANIFEST_LENGTH) {
+            return null;
+        }
+        for (int i = 0; i < MANIFEST_MAGIC.length; i++) {
+            if (data[offset + i] != MANIFEST_MAGIC[i]) {
+                return null;
+            }
+        }
+        String[] parts = new String(data, offset + MANIFEST_MAGIC.length,
+                length - MANIFEST_MAGIC.length).split(":");
+        if (parts.length != 3) {
+            return null;
+        }
+        try {
+            int chunkSize = Integer.parseInt(parts[1]);
+            long total = Long.parseLong(parts[2]);
+            if (chunkSize <= 0 || total < 0) {
+                return null;
+            }
+            return new Manifest(parts[0], chunkSize, total);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 分配一个新的 id 并标记为写入中，使用完后调用 {@link #finish(String)}
+     */
+    public String newId() {
+        String id;
+        synchronized (random) {
+            id = Long.toHexString(System.currentTimeMillis()) + Long.toHexString(random.nextLong());
+        }
+        inFlight.add(id);
+        return id;
+    }
+
+    public void finish(String id) {
+        inFlight.remove(id);
+    }
+
+    private File chunkFile(String id, int index) {
+        return new File(chunkDir, id + "." + index);
+    }
+
+    /**
+     * 并行写入 data[offset, data.length)，失败时删除已写入的块
+     */
+    public Manifest write(String id, final byte[] data, final int offset, int chunkSize)
+            throws IOException {
+        final Manifest manifest = new Manifest(id, chunkSize, data.length - offset);
+        prepareDir();
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < manifest.chunkCount(); i++) {
+            final int index = i;
+            futures.add(ioPool.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    writeChunk(manifest, index, data,
+                            offset + (int) ((long) index * manifest.chunkSize));
+                    return null;
+                }
+            }));
+        }
+        try {
+            awaitAll(futures);
+        } catch (IOException e) {
+            delete(manifest);
+            throw e;
+        }
+        return manifest;
+    }
+
+    /**
+     * 从输入流顺序读取、并行写入，同时在写的块不超过线程数，长度不受 byte[] 大小限制
+     */
+    public Manifest write(String id, InputStream in, int chunkSize) throws IOException {
+        prepareDir();
+        List<Future<?>> futures = new ArrayList<>();
+        long total = 0;
+        int index = 0;
+        try {
+            while (true) {
+                final byte[] buffer = new byte[chunkSize];
+                final int length = readChunk(in, buffer);
+                if (length == 0) {
+                    break;
+                }
+                final File file = chunkFile(id, index++);
+                total += length;
+                if (futures.size() >= parallelism) {
+                    await(futures.remove(0));
+                }
+                futures.add(ioPool.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        writeFile(file, buffer, 0, length);
+                        return null;
+                    }
+                }));
+                if (length < chunkSize) {
+                    break;
+                }
+            }
+            awaitAll(futures);
+        } catch (IOException e) {
+            deleteChunks(id, index);
+            throw e;
+        }
+        return new Manifest(id, chunkSize, total);
+    }
+
+    /**
+     * 并行读取全部数据，放在 header 之后
+     */
+    public byte[] readFully(final Manifest manifest, byte[] header) throws IOException {
+        if (header.length + manifest.length > MAX_ARRAY_SIZE) {
+            throw new IOException("value too large for byte[]: " + manifest.length);
+        }
+        final byte[] data = new byte[header.length + (int) manifest.length];
+        System.arraycopy(header, 0, data, 0, header.length);
+        final int base = header.length;
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < manifest.chunkCount(); i++) {
+            final int index = i;
+            futures.add(ioPool.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    readChunk(manifest, index, data, base + index * manifest.chunkSize);
+                    return null;
+                }
+            }));
+        }
+        awaitAll(futures);
+        return data;
+    }
+
+    /**
+     * 按顺序把全部数据写入 out，后面的块在后台并行预读
+     */
+    public void copyTo(final Manifest manifest, OutputStream out) throws IOException {
+        int count = manifest.chunkCount();
+        List<Future<byte[]>> window = new ArrayList<>();
+        int next = 0;
+        try {
+            for (int i = 0; i < count; i++) {
+                while (next < count && window.size() < parallelism) {
+                    final int index = next++;
+                    window.add(ioPool.submit(new Callable<byte[]>() {
+                        @Override
+                        public byte[] call() throws IOException {
+                            byte[] chunk = new byte[manifest.chunkLength(index)];
+                            readChunk(manifest, index, chunk, 0);
+                            return chunk;
+                        }
+                    }));
+                }
+                out.write(await(window.remove(0)));
+            }
+        } finally {
+            for (Future<byte[]> future : window) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * 从 position 开始读取，最多填满 dst 的剩余空间
+     *
+     * @return 读取的字节数，position 超出末尾时返回 -1
+     */
+    public int read(Manifest manifest, long position, ByteBuffer dst) throws IOException {
+        if (position >= manifest.length) {
+            return -1;
+        }
+        int total = 0;
+        while (dst.hasRemaining() && position < manifest.length) {
+            int index = (int) (position / manifest.chunkSize);
+            long inChunk = position - (long) index * manifest.chunkSize;
+            int toRead = (int) Math.min(dst.remaining(), manifest.chunkLength(index) - inChunk);
+            RandomAccessFile raf = new RandomAccessFile(chunkFile(manifest.id, index), "r");
+            try {
+                FileChannel channel = raf.getChannel();
+                ByteBuffer target = dst.duplicate();
+                target.limit(target.position() + toRead);
+                while (target.hasRemaining()) {
+                    if (channel.read(target, inChunk + (target.position() - dst.position())) < 0) {
+                        throw new EOFException("chunk truncated: " + manifest.id + "." + index);
+                    }
+                }
+            } finally {
+                raf.close();
+            }
+            dst.position(dst.position() + toRead);
+            position += toRead;
+            total += toRead;
+        }
+        return total;
+    }
+
+    public void delete(Manifest manifest) {
+        deleteChunks(manifest.id, manifest.chunkCount());
+    }
+
+    /**
+     * 删除没有被任何清单引用、也不在写入中的块文件（包括写入中断留下的块）
+     */
+    public void deleteUnreferenced(Set<String> referencedIds) {
+        File[] files = chunkDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            int dot = name.indexOf('.');
+            String id = dot < 0 ? name : name.substring(0, dot);
+            if (!referencedIds.contains(id) && !inFlight.contains(id)) {
+                file.delete();
+            }
+        }
+    }
+
+    public void close() {
+        ioPool.shutdown();
+    }
+
+    private void prepareDir() throws IOException {
+        if (!chunkDir.exists() && !chunkDir.mkdirs()) {
+            throw new IOException("can't make dirs in " + chunkDir.getAbsolutePath());
+        }
+    }
+
+    private void deleteChunks(String id, int count) {
+        for (int i = 0; i < count; i++) {
+            File file = chunkFile(id, i);
+            if (!file.delete() && file.exists()) {
+                Log.w(TAG, "can't delete " + file.getAbsolutePath());
+            }
+        }
+    }
+
+    private void writeChunk(Manifest manifest, int index, byte[] data, int offset) throws IOException {
+        writeFile(chunkFile(manifest.id, index), data, offset, manifest.chunkLength(index));
+    }
+
+    private static void writeFile(File file, byte[] data, int offset, int length) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data, offset, length);
+        } finally {
+            out.close();
+        }
+    }
+
+    private void readChunk(Manifest manifest, int index, byte[] data, int offset) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(chunkFile(manifest.id, index), "r");
+        try {
+            int length = manifest.chunkLength(index);
+            if (raf.length() != length) {
+                throw new EOFException("chunk truncated: " + manifest.id + "." + index);
+            }
+            raf.readFully(data, offset, length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * 读满 buffer 或到达流末尾
+     *
+     * @return 读取的字节数
+     */
+    private static int readChunk(InputStream in, byte[] buffer) throws IOException {
+        int total = 0;
+        while (total < buffer.length) {
+            int read = in.read(buffer, total, buffer.length - total);
+            if (read < 0) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    private static void awaitAll(List<? extends Future<?>> futures) throws IOException {
+        IOException failure = null;
+        for (Future<?> future : futures) {
+            try {
+                await(future);
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+}
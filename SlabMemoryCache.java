@@ -0,0 +1,298 @@
+package tech.zhiqu.cache;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 堆外内存缓存层：数据保存在 direct ByteBuffer 切成的固定大小块（slab）里，不占用 Java 堆。
+ * <p/>
+ * 每个 size class 的块大小是 2 的幂，从 {@link #MIN_CHUNK_SIZE} 到 {@link #SLAB_SIZE}。
+ * slab 按需分配，总量不超过 maxBytes；某个 size class 没有空闲块时先淘汰同一 size class 中最久未使用的数据，
+ * 这个 size class 没有数据可淘汰时再从其它 size class 转移一个 slab 过来。
+ */
+public class SlabMemoryCache {
+    public static final int MIN_CHUNK_SIZE = 1024; // 1 KB
+    public static final int SLAB_SIZE = 1024 * 1024; // 1 MB
+    private static final int VERSION_STRIPES = 256;
+
+    private final long maxBytes;
+    private long allocatedBytes;
+    private final SizeClass[] sizeClasses;
+    // accessOrder = true，迭代顺序即 LRU 顺序
+    private final LinkedHashMap<String, Slot> index = new LinkedHashMap<>(16, 0.75f, true);
+    // 按 key 的 hash 分段的版本号，remove / clear 时增加；用于丢弃读取期间已经失效的数据
+    private final long[] versions = new long[VERSION_STRIPES];
+
+    public SlabMemoryCache(long maxBytes) {
+        if (maxBytes < SLAB_SIZE) {
+            throw new IllegalArgumentException("maxBytes must be >= " + SLAB_SIZE);
+        }
+        this.maxBytes = maxBytes;
+        List<SizeClass> classes = new ArrayList<>();
+        for (int chunkSize = MIN_CHUNK_SIZE; chunkSize <= SLAB_SIZE; chunkSize <<= 1) {
+            classes.add(new SizeClass(chunkSize));
+        }
+        sizeClasses = classes.toArray(new SizeClass[classes.size()]);
+    }
+
+    /**
+     * 能放进堆外缓存的最大数据长度
+     */
+    public int maxEntrySize() {
+        return SLAB_SIZE;
+    }
+
+    /**
+     * 保存数据；数据过大或当前 size class 无法腾出空间时不缓存
+     *
+     * @return 是否已缓存
+     */
+    public synchronized boolean put(String key, byte[] value) {
+        remove(key);
+        if (value == null || value.length > SLAB_SIZE) {
+            return false;
+        }
+        SizeClass sizeClass = sizeClassFor(value.length);
+        Slot slot = sizeClass.allocate();
+        if (slot == null && allocatedBytes + SLAB_SIZE <= maxBytes) {
+            sizeClass.addSlab(ByteBuffer.allocateDirect(SLAB_SIZE));
+            allocatedBytes += SLAB_SIZE;
+            slot = sizeClass.allocate();
+        }
+        if (slot == null && evictFrom(sizeClass)) {
+            slot = sizeClass.allocate();
+        }
+        if (slot == null && reassignSlab(sizeClass)) {
+            slot = sizeClass.allocate();
+        }
+        if (slot == null) {
+            return false;
+        }
+        slot.length = value.length;
+        ByteBuffer buffer = slot.view();
+        buffer.put(value, 0, value.length);
+        index.put(key, slot);
+        return true;
+    }
+
+    /**
+     * @return key 当前的版本号，读取磁盘之前获取，之后传给 {@link #putIfUnchanged}
+     */
+    public synchronized long version(String key) {
+        return versions[stripe(key)];
+    }
+
+    /**
+     * 只有 key 在获取 version 之后没有被 remove / clear 过时才保存，
+     * 避免把读取期间已被覆盖写的旧数据放进缓存
+     *
+     * @return 是否已缓存
+     */
+    public synchronized boolean putIfUnchanged(String key, byte[] value, long version) {
+        if (versions[stripe(key)] != version) {
+            return false;
+        }
+        return put(key, value);
+    }
+
+    /**
+     * @return 数据的堆内拷贝，不存在时返回 null
+     */
+    public synchronized byte[] get(String key) {
+        Slot slot = index.get(key);
+        if (slot == null) {
+            return null;
+        }
+        byte[] data = new byte[slot.length];
+        slot.view().get(data, 0, slot.length);
+        return data;
+    }
+
+    public synchronized boolean remove(String key) {
+        versions[stripe(key)]++;
+        Slot slot = index.remove(key);
+        if (slot == null) {
+            return false;
+        }
+        slot.sizeClass.release(slot);
+        return true;
+    }
+
+    /**
+     * 清空索引，已分配的 slab 保留下来复用
+     */
+    public synchronized void clear() {
+        for (int i = 0; i < versions.length; i++) {
+            versions[i]++;
+        }
+        for (Slot slot : index.values()) {
+            slot.sizeClass.release(slot);
+        }
+        index.clear();
+    }
+
+    public synchronized int count() {
+        return index.size();
+    }
+
+    /**
+     * @return 已分配的堆外内存字节数
+     */
+    public synchronized long allocatedBytes() {
+        return allocatedBytes;
+    }
+
+    private static int stripe(String key) {
+        return (key.hashCode() & 0x7FFFFFFF) % VERSION_STRIPES;
+    }
+
+    private SizeClass sizeClassFor(int length) {
+        for (SizeClass sizeClass : sizeClasses) {
+            if (length <= sizeClass.chunkSize) {
+                return sizeClass;
+            }
+        }
+        throw new IllegalArgumentException("entry too large: " + length);
+    }
+
+    private boolean evictFrom(SizeClass sizeClass) {
+        Iterator<Map.Entry<String, Slot>> it = index.entrySet().iterator();
+        while (it.hasNext()) {
+            Slot slot = it.next().getValue();
+            if (slot.sizeClass == sizeClass) {
+                it.remove();
+                sizeClass.release(slot);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 把其它 size class 的一个 slab 转给 target：优先选所有块都空闲的 slab，
+     * 否则选最久未使用的数据所在的 slab，并淘汰其中的全部数据
+     *
+     * @return 是否转移成功
+     */
+    private boolean reassignSlab(SizeClass target) {
+        ByteBuffer slab = null;
+        SizeClass owner = null;
+        for (SizeClass sizeClass : sizeClasses) {
+            if (sizeClass != target) {
+                slab = sizeClass.emptySlab();
+                if (slab != null) {
+                    owner = sizeClass;
+                    break;
+                }
+            }
+        }
+        if (slab == null) {
+            // 遍历 values() 不改变访问顺序
+            for (Slot slot : index.values()) {
+                if (slot.sizeClass != target) {
+                    slab = slot.slab;
+                    owner = slot.sizeClass;
+                    break;
+                }
+            }
+        }
+        if (slab == null) {
+            return false;
+        }
+        Iterator<Slot> it = index.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().slab == slab) {
+                it.remove();
+            }
+        }
+        owner.removeSlab(slab);
+        target.addSlab(slab);
+        return true;
+    }
+
+    private static final class SizeClass {
+        final int chunkSize;
+        final List<ByteBuffer> slabs = new ArrayList<>();
+        final ArrayDeque<Slot> freeSlots = new ArrayDeque<>();
+
+        SizeClass(int chunkSize) {
+            this.chunkSize = chunkSize;
+        }
+
+        void addSlab(ByteBuffer slab) {
+            slabs.add(slab);
+            for (int offset = 0; offset + chunkSize <= SLAB_SIZE; offset += chunkSize) {
+                freeSlots.add(new Slot(this, slab, offset));
+            }
+        }
+
+        // ByteBuffer.equals 比较的是内容，slab 只能按引用比较
+        void removeSlab(ByteBuffer slab) {
+            for (int i = 0; i < slabs.size(); i++) {
+                if (slabs.get(i) == slab) {
+                    slabs.remove(i);
+                    break;
+                }
+            }
+            Iterator<Slot> it = freeSlots.iterator();
+            while (it.hasNext()) {
+                if (it.next().slab == slab) {
+                    it.remove();
+                }
+            }
+        }
+
+        /**
+         * @return 所有块都空闲的 slab，没有时返回 null
+         */
+        ByteBuffer emptySlab() {
+            int slotsPerSlab = SLAB_SIZE / chunkSize;
+            Map<ByteBuffer, Integer> freeCounts = new IdentityHashMap<>();
+            for (Slot slot : freeSlots) {
+                Integer count = freeCounts.get(slot.slab);
+                count = count == null ? 1 : count + 1;
+                if (count == slotsPerSlab) {
+                    return slot.slab;
+                }
+                freeCounts.put(slot.slab, count);
+            }
+            return null;
+        }
+
+        Slot allocate() {
+            return freeSlots.poll();
+        }
+
+        void release(Slot slot) {
+            slot.length = 0;
+            freeSlots.push(slot);
+        }
+    }
+
+    private static final class Slot {
+        final SizeClass sizeClass;
+        final ByteBuffer slab;
+        final int offset;
+        int length;
+
+        Slot(SizeClass sizeClass, ByteBuffer slab, int offset) {
+            this.sizeClass = sizeClass;
+            this.slab = slab;
+            this.offset = offset;
+        }
+
+        // 每次返回独立的 position/limit，避免共享 slab 的游标
+        ByteBuffer view() {
+            ByteBuffer dup = slab.duplicate();
+            dup.limit(offset + sizeClass.chunkSize);
+            dup.position(offset);
+            return dup;
+        }
+    }
+}
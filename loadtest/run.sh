@@ -0,0 +1,21 @@
+#!/bin/sh
+# 在 JVM 上编译并运行 AndroidCache 压测，Android 类型使用 loadtest/stubs 中的 stub。
+#
+# 例如：loadtest/run.sh --threads 8 --duration 60 --keys 200000 --zipf 1.1 --max-size 33554432
+# 查看全部选项：loadtest/run.sh --help
+# 检查索引建立期间的写入：loadtest/run.sh --warmup-check [文件数量]
+set -e
+
+ROOT=$(cd "$(dirname "$0")/.." && pwd)
+OUT=${TMPDIR:-/tmp}/androidcache-loadtest-classes
+
+rm -rf "$OUT"
+mkdir -p "$OUT"
+javac -encoding UTF-8 -nowarn -d "$OUT" \
+    $(find "$ROOT/loadtest/stubs" "$ROOT/loadtest/src" -name '*.java') \
+    "$ROOT"/*.java
+if [ "$1" = "--warmup-check" ]; then
+    shift
+    exec java -cp "$OUT" tech.zhiqu.cache.loadtest.WarmupCheck "$@"
+fi
+exec java -cp "$OUT" tech.zhiqu.cache.loadtest.LoadTest "$@"
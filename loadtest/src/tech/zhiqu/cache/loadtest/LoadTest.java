@@ -0,0 +1,425 @@
+package tech.zhiqu.cache.loadtest;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import tech.zhiqu.cache.AndroidCache;
+
+/**
+ * AndroidCache 多线程压测：Zipf 分布的 key、按权重分布的数据大小、部分数据带有效期，
+ * 缓存上限小于数据总量时会持续淘汰。每个统计周期输出吞吐、命中率和读写延迟的 p50/p99/p999。
+ * <p/>
+ * 在 JVM 上运行，Android 类型使用 loadtest/stubs 中的 stub，用法见 loadtest/run.sh。
+ */
+public class LoadTest {
+
+    static final class Options {
+        int threads = 4;
+        int durationSeconds = 30;
+        int reportSeconds = 5;
+        int keys = 100000;
+        double zipf = 0.99;
+        double readRatio = 0.9;
+        // 使用 String 接口读写的比例，--coalesce 只对 String 写入生效
+        double stringRatio;
+        // 大小:权重，逗号分隔
+        String valueSizes = "512:60,8192:30,131072:10";
+        double ttlRatio = 0.1;
+        int ttlSeconds = 10;
+        long maxSize = 64L * 1024 * 1024;
+        int maxCount = Integer.MAX_VALUE;
+        String dir;
+        long offHeapBytes;
+        long coalesceMillis;
+        int dedupMinSize;
+        int chunkMinSize;
+        int chunkSize = 256 * 1024;
+        long seed = 42;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = parse(args);
+        File dir = options.dir != null ? new File(options.dir)
+                : new File(System.getProperty("java.io.tmpdir"), "androidcache-loadtest-" + System.nanoTime());
+        AndroidCache cache = AndroidCache.getInstance(dir, options.maxSize, options.maxCount);
+        if (options.offHeapBytes > 0) {
+            cache.enableOffHeapCache(options.offHeapBytes);
+        }
+        if (options.coalesceMillis > 0) {
+            cache.setWriteCoalescing(options.coalesceMillis);
+        }
+        if (options.dedupMinSize > 0) {
+            cache.setDeduplication(options.dedupMinSize);
+        }
+        if (options.chunkMinSize > 0) {
+            cache.setChunking(options.chunkMinSize, options.chunkSize);
+        }
+        System.out.println(String.format(Locale.US,
+                "dir=%s threads=%d duration=%ds keys=%d zipf=%.2f read=%.0f%% string=%.0f%% sizes=%s ttl=%.0f%%/%ds maxSize=%d maxCount=%d",
+                dir, options.threads, options.durationSeconds, options.keys, options.zipf,
+                options.readRatio * 100, options.stringRatio * 100, options.valueSizes, options.ttlRatio * 100,
+                options.ttlSeconds, options.maxSize, options.maxCount));
+        new LoadTest(cache, options).run();
+    }
+
+    private final AndroidCache cache;
+    private final Options options;
+    private final ZipfGenerator keys;
+    private final int[] sizes;
+    private final double[] sizeCdf;
+    private volatile boolean running = true;
+
+    LoadTest(AndroidCache cache, Options options) {
+        this.cache = cache;
+        this.options = options;
+        this.keys = new ZipfGenerator(options.keys, options.zipf);
+        String[] parts = options.valueSizes.split(",");
+        sizes = new int[parts.length];
+        sizeCdf = new double[parts.length];
+        double total = 0;
+        for (int i = 0; i < parts.length; i++) {
+            String[] sizeAndWeight = parts[i].trim().split(":");
+            sizes[i] = Integer.parseInt(sizeAndWeight[0]);
+            total += sizeAndWeight.length > 1 ? Double.parseDouble(sizeAndWeight[1]) : 1;
+            sizeCdf[i] = total;
+        }
+        for (int i = 0; i < sizeCdf.length; i++) {
+            sizeCdf[i] /= total;
+        }
+    }
+
+    void run() throws InterruptedException {
+        final Stats[] stats = new Stats[options.threads];
+        final CountDownLatch done = new CountDownLatch(options.threads);
+        for (int i = 0; i < options.threads; i++) {
+            stats[i] = new Stats();
+            final Stats threadStats = stats[i];
+            final Random random = new Random(options.seed + i);
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        work(random, threadStats);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, "loadtest-" + i);
+            worker.start();
+        }
+
+        Snapshot total = new Snapshot();
+        long start = System.nanoTime();
+        long end = start + options.durationSeconds * 1000000000L;
+        Snapshot previous = new Snapshot();
+        printHeader();
+        while (System.nanoTime() < end) {
+            long sleep = Math.min(options.reportSeconds * 1000L, (end - System.nanoTime()) / 1000000L);
+            if (sleep > 0) {
+                Thread.sleep(sleep);
+            }
+            Snapshot current = Snapshot.of(stats);
+            long elapsed = System.nanoTime() - start;
+            print(String.format(Locale.US, "%6.1fs", elapsed / 1e9), current.minus(previous),
+                    Math.min(sleep, options.reportSeconds * 1000L) / 1000.0);
+            previous = current;
+        }
+        running = false;
+        done.await();
+        total = Snapshot.of(stats);
+        System.out.println();
+        print(" total", total, (System.nanoTime() - start) / 1e9);
+    }
+
+    private void work(Random random, Stats stats) {
+        byte[][] buffers = new byte[sizes.length][];
+        String[] texts = new String[sizes.length];
+        for (int i = 0; i < sizes.length; i++) {
+            buffers[i] = new byte[sizes[i]];
+            random.nextBytes(buffers[i]);
+            char[] chars = new char[sizes[i]];
+            for (int j = 0; j < chars.length; j++) {
+                chars[j] = (char) ('a' + random.nextInt(26));
+            }
+            texts[i] = new String(chars);
+        }
+        long counter = 0;
+        while (running) {
+            // String 数据和二进制数据使用不同的 key，读取时不会按错误的类型解析
+            boolean string = random.nextDouble() < options.stringRatio;
+            String key = (string ? "s" : "k") + keys.next(random);
+            if (random.nextDouble() < options.readRatio) {
+                long begin = System.nanoTime();
+                Object value = string ? cache.getAsString(key) : cache.getAsBinary(key);
+                stats.readLatency.record(System.nanoTime() - begin);
+                stats.reads.incrementAndGet();
+                if (value != null) {
+                    stats.hits.incrementAndGet();
+                }
+            } else {
+                int size = pickSize(random);
+                boolean withTtl = random.nextDouble() < options.ttlRatio;
+                long begin;
+                if (string) {
+                    String value = (counter++) + texts[size];
+                    begin = System.nanoTime();
+                    if (withTtl) {
+                        cache.put(key, value, options.ttlSeconds);
+                    } else {
+                        cache.put(key, value);
+                    }
+                } else {
+                    byte[] value = buffers[size];
+                    // 每次写入的内容不同，避免被去重全部合并
+                    writeLong(value, counter++);
+                    begin = System.nanoTime();
+                    if (withTtl) {
+                        cache.put(key, value, options.ttlSeconds);
+                    } else {
+                        cache.put(key, value);
+                    }
+                }
+                stats.writeLatency.record(System.nanoTime() - begin);
+                stats.writes.incrementAndGet();
+            }
+        }
+    }
+
+    private int pickSize(Random random) {
+        double r = random.nextDouble();
+        for (int i = 0; i < sizeCdf.length; i++) {
+            if (r < sizeCdf[i]) {
+                return i;
+            }
+        }
+        return sizeCdf.length - 1;
+    }
+
+    private static void writeLong(byte[] data, long value) {
+        for (int i = 0; i < 8 && i < data.length; i++) {
+            data[i] = (byte) (value >>> (i * 8));
+        }
+    }
+
+    private static void printHeader() {
+        System.out.println(String.format(Locale.US, "%7s %10s %7s | %10s %10s %10s | %10s %10s %10s",
+                "time", "ops/s", "hit", "read p50", "p99", "p999", "write p50", "p99", "p999"));
+    }
+
+    private static void print(String label, Snapshot s, double seconds) {
+        long ops = s.reads + s.writes;
+        System.out.println(String.format(Locale.US, "%7s %10.0f %6.1f%% | %10s %10s %10s | %10s %10s %10s",
+                label, seconds > 0 ? ops / seconds : 0,
+                s.reads > 0 ? s.hits * 100.0 / s.reads : 0,
+                formatNanos(Histogram.percentile(s.readLatency, 0.50)),
+                formatNanos(Histogram.percentile(s.readLatency, 0.99)),
+                formatNanos(Histogram.percentile(s.readLatency, 0.999)),
+                formatNanos(Histogram.percentile(s.writeLatency, 0.50)),
+                formatNanos(Histogram.percentile(s.writeLatency, 0.99)),
+                formatNanos(Histogram.percentile(s.writeLatency, 0.999))));
+    }
+
+    private static String formatNanos(long nanos) {
+        if (nanos < 0) {
+            return "-";
+        }
+        if (nanos < 1000000) {
+            return String.format(Locale.US, "%.1fus", nanos / 1e3);
+        }
+        return String.format(Locale.US, "%.2fms", nanos / 1e6);
+    }
+
+    private static Options parse(String[] args) {
+        Options options = new Options();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("-h") || arg.equals("--help")) {
+                usage();
+            }
+            if (i + 1 >= args.length) {
+                System.err.println("missing value for " + arg);
+                usage();
+            }
+            String value = args[++i];
+            if (arg.equals("--threads")) {
+                options.threads = Integer.parseInt(value);
+            } else if (arg.equals("--duration")) {
+                options.durationSeconds = Integer.parseInt(value);
+            } else if (arg.equals("--report")) {
+                options.reportSeconds = Integer.parseInt(value);
+            } else if (arg.equals("--keys")) {
+                options.keys = Integer.parseInt(value);
+            } else if (arg.equals("--zipf")) {
+                options.zipf = Double.parseDouble(value);
+            } else if (arg.equals("--read-ratio")) {
+                options.readRatio = Double.parseDouble(value);
+            } else if (arg.equals("--string-ratio")) {
+                options.stringRatio = Double.parseDouble(value);
+            } else if (arg.equals("--value-sizes")) {
+                options.valueSizes = value;
+            } else if (arg.equals("--ttl-ratio")) {
+                options.ttlRatio = Double.parseDouble(value);
+            } else if (arg.equals("--ttl")) {
+                options.ttlSeconds = Integer.parseInt(value);
+            } else if (arg.equals("--max-size")) {
+                options.maxSize = Long.parseLong(value);
+            } else if (arg.equals("--max-count")) {
+                options.maxCount = Integer.parseInt(value);
+            } else if (arg.equals("--dir")) {
+                options.dir = value;
+            } else if (arg.equals("--off-heap")) {
+                options.offHeapBytes = Long.parseLong(value);
+            } else if (arg.equals("--coalesce")) {
+                options.coalesceMillis = Long.parseLong(value);
+            } else if (arg.equals("--dedup")) {
+                options.dedupMinSize = Integer.parseInt(value);
+            } else if (arg.equals("--chunking")) {
+                options.chunkMinSize = Integer.parseInt(value);
+            } else if (arg.equals("--chunk-size")) {
+                options.chunkSize = Integer.parseInt(value);
+            } else if (arg.equals("--seed")) {
+                options.seed = Long.parseLong(value);
+            } else {
+                System.err.println("unknown option " + arg);
+                usage();
+            }
+        }
+        return options;
+    }
+
+    private static void usage() {
+        System.err.println("usage: run.sh [--threads N] [--duration S] [--report S] [--keys N] [--zipf S]\n"
+                + "              [--read-ratio R] [--string-ratio R] [--value-sizes SIZE:WEIGHT,...]\n"
+                + "              [--ttl-ratio R] [--ttl S] [--max-size BYTES] [--max-count N] [--dir PATH]\n"
+                + "              [--off-heap BYTES] [--coalesce MS] [--dedup MIN_SIZE]\n"
+                + "              [--chunking MIN_SIZE] [--chunk-size BYTES] [--seed N]");
+        System.exit(1);
+    }
+
+    /**
+     * Zipf 分布：第 i 个 key（从 0 开始）被选中的概率正比于 1 / (i + 1)^s，使用预先计算的累积分布二分查找
+     */
+    static final class ZipfGenerator {
+        private final double[] cdf;
+
+        ZipfGenerator(int n, double s) {
+            cdf = new double[n];
+            double sum = 0;
+            for (int i = 0; i < n; i++) {
+                sum += 1.0 / Math.pow(i + 1, s);
+                cdf[i] = sum;
+            }
+            for (int i = 0; i < n; i++) {
+                cdf[i] /= sum;
+            }
+        }
+
+        int next(Random random) {
+            int index = Arrays.binarySearch(cdf, random.nextDouble());
+            return index >= 0 ? index : Math.min(-index - 1, cdf.length - 1);
+        }
+    }
+
+    /**
+     * 对数分桶的延迟直方图：每个 2 的幂区间分 16 个桶，误差约 6%；计数可以被统计线程并发读取
+     */
+    static final class Histogram {
+        private static final int SUB_BITS = 4;
+        private static final int SUB_COUNT = 1 << SUB_BITS;
+        static final int BUCKETS = 64 * SUB_COUNT;
+
+        final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+        void record(long nanos) {
+            counts.incrementAndGet(bucket(Math.max(0, nanos)));
+        }
+
+        static int bucket(long value) {
+            if (value < SUB_COUNT) {
+                return (int) value;
+            }
+            int exp = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exp - SUB_BITS)) - SUB_COUNT;
+            return (exp - SUB_BITS + 1) * SUB_COUNT + sub;
+        }
+
+        // 桶的上界
+        static long upperBound(int bucket) {
+            if (bucket < SUB_COUNT) {
+                return bucket;
+            }
+            int exp = bucket / SUB_COUNT + SUB_BITS - 1;
+            long mantissa = bucket % SUB_COUNT + SUB_COUNT;
+            return ((mantissa + 1) << (exp - SUB_BITS)) - 1;
+        }
+
+        static long percentile(long[] counts, double p) {
+            long total = 0;
+            for (long count : counts) {
+                total += count;
+            }
+            if (total == 0) {
+                return -1;
+            }
+            long target = (long) Math.ceil(total * p);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= target) {
+                    return upperBound(i);
+                }
+            }
+            return upperBound(counts.length - 1);
+        }
+    }
+
+    static final class Stats {
+        final Histogram readLatency = new Histogram();
+        final Histogram writeLatency = new Histogram();
+        final AtomicLong reads = new AtomicLong();
+        final AtomicLong hits = new AtomicLong();
+        final AtomicLong writes = new AtomicLong();
+    }
+
+    /**
+     * 所有线程统计的累计值
+     */
+    static final class Snapshot {
+        long reads;
+        long hits;
+        long writes;
+        long[] readLatency = new long[Histogram.BUCKETS];
+        long[] writeLatency = new long[Histogram.BUCKETS];
+
+        static Snapshot of(Stats[] stats) {
+            Snapshot s = new Snapshot();
+            for (Stats t : stats) {
+                s.reads += t.reads.get();
+                s.hits += t.hits.get();
+                s.writes += t.writes.get();
+                for (int i = 0; i < Histogram.BUCKETS; i++) {
+                    s.readLatency[i] += t.readLatency.counts.get(i);
+                    s.writeLatency[i] += t.writeLatency.counts.get(i);
+                }
+            }
+            return s;
+        }
+
+        Snapshot minus(Snapshot other) {
+            Snapshot s = new Snapshot();
+            s.reads = reads - other.reads;
+            s.hits = hits - other.hits;
+            s.writes = writes - other.writes;
+            for (int i = 0; i < Histogram.BUCKETS; i++) {
+                s.readLatency[i] = readLatency[i] - other.readLatency[i];
+                s.writeLatency[i] = writeLatency[i] - other.writeLatency[i];
+            }
+            return s;
+        }
+    }
+}
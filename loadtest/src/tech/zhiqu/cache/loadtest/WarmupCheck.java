@@ -0,0 +1,74 @@
+package tech.zhiqu.cache.loadtest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import tech.zhiqu.cache.CacheService;
+
+/**
+ * 检查后台索引建立期间写入的数据：去重保存和分块保存的数据在索引完成后仍能完整读出。
+ * <p/>
+ * 先在目录中生成大量小文件，让首次扫描足够慢，然后在 isIndexReady() 为 false 时写入。
+ * 用法：loadtest/run.sh --warmup-check [文件数量]，失败时退出码为 1。
+ */
+public class WarmupCheck {
+
+    public static void main(String[] args) throws Exception {
+        int files = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        File dir = new File(System.getProperty("java.io.tmpdir"), "androidcache-warmup-" + System.nanoTime());
+        fill(dir, files);
+
+        CacheService cache = new CacheService(dir, Long.MAX_VALUE, Integer.MAX_VALUE);
+        cache.setDeduplication(16);
+        cache.setChunking(4096, 1024);
+        Random random = new Random(42);
+        byte[] deduped = new byte[1000];
+        byte[] chunked = new byte[10000];
+        random.nextBytes(deduped);
+        random.nextBytes(chunked);
+        cache.setKeyValueByte("deduped", deduped);
+        cache.setKeyValueByte("chunked", chunked);
+        if (cache.isIndexReady()) {
+            System.out.println("inconclusive: index finished before the writes, retry with more than " + files + " files");
+            System.exit(2);
+        }
+        if (!cache.awaitIndexReady(5, TimeUnit.MINUTES)) {
+            System.out.println("index not ready after 5 minutes");
+            System.exit(1);
+        }
+        // 等待后台删除：引用被错误释放时，块文件在后台线程删除
+        Thread.sleep(500);
+
+        boolean ok = check("deduped", deduped, cache.getBinary("deduped"))
+                & check("chunked", chunked, cache.getBinary("chunked"));
+        cache.clear();
+        cache.close();
+        System.exit(ok ? 0 : 1);
+    }
+
+    private static boolean check(String key, byte[] expected, byte[] actual) {
+        boolean ok = Arrays.equals(expected, actual);
+        System.out.println(key + ": " + (ok ? "ok" : "FAILED, got "
+                + (actual == null ? "null" : actual.length + " bytes")));
+        return ok;
+    }
+
+    private static void fill(File dir, int files) throws IOException {
+        if (!dir.mkdirs()) {
+            throw new IOException("can't make dirs in " + dir.getAbsolutePath());
+        }
+        byte[] data = new byte[16];
+        for (int i = 0; i < files; i++) {
+            FileOutputStream out = new FileOutputStream(new File(dir, "filler-" + i));
+            try {
+                out.write(data);
+            } finally {
+                out.close();
+            }
+        }
+    }
+}
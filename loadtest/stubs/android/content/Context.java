@@ -0,0 +1,12 @@
+/*
+ * 仅用于在 JVM 上运行压测的最小 stub，只实现 AndroidCache 用到的部分。
+ */
+package android.content;
+
+import java.io.File;
+
+public class Context {
+    public File getCacheDir() {
+        return new File(System.getProperty("java.io.tmpdir"));
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ * 仅用于在 JVM 上运行压测的最小 stub，只实现 AndroidCache 用到的部分。
+ */
+package android.graphics;
+
+import java.io.OutputStream;
+
+public class Bitmap {
+    public enum CompressFormat {
+        PNG, JPEG, WEBP
+    }
+
+    public enum Config {
+        ALPHA_8, RGB_565, ARGB_8888
+    }
+
+    public static Bitmap createBitmap(int width, int height, Config config) {
+        return new Bitmap();
+    }
+
+    public boolean compress(CompressFormat format, int quality, OutputStream stream) {
+        throw new UnsupportedOperationException("stub");
+    }
+
+    public boolean isMutable() {
+        return false;
+    }
+
+    public boolean isRecycled() {
+        return false;
+    }
+}
@@ -0,0 +1,23 @@
+/*
+ * 仅用于在 JVM 上运行压测的最小 stub，只实现 AndroidCache 用到的部分。
+ */
+package android.graphics;
+
+public class BitmapFactory {
+    public static class Options {
+        public boolean inJustDecodeBounds;
+        public int inSampleSize;
+        public boolean inMutable;
+        public Bitmap inBitmap;
+        public int outWidth;
+        public int outHeight;
+    }
+
+    public static Bitmap decodeByteArray(byte[] data, int offset, int length) {
+        return decodeByteArray(data, offset, length, null);
+    }
+
+    public static Bitmap decodeByteArray(byte[] data, int offset, int length, Options opts) {
+        throw new UnsupportedOperationException("stub");
+    }
+}
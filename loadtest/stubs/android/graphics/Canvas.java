@@ -0,0 +1,9 @@
+/*
+ * 仅用于在 JVM 上运行压测的最小 stub，只实现 AndroidCache 用到的部分。
+ */
+package android.graphics;
+
+public class Canvas {
+    public Canvas(Bitmap bitmap) {
+    }
+}
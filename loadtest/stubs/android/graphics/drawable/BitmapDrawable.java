@@ -0,0 +1,16 @@
+/*
+ * 仅用于在 JVM 上运行压测的最小 stub，只实现 AndroidCache 用到的部分。
+ */
+package android.graphics.drawable;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+
+public class BitmapDrawable extends Drawable {
+    public BitmapDrawable(Bitmap bitmap) {
+    }
+
+    @Override
+    public void draw(Canvas canvas) {
+    }
+}
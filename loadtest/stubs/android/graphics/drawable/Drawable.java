@@ -0,0 +1,25 @@
+/*
+ * 仅用于在 JVM 上运行压测的最小 stub，只实现 AndroidCache 用到的部分。
+ */
+package android.graphics.drawable;
+
+import android.graphics.Canvas;
+
+public abstract class Drawable {
+    public int getIntrinsicWidth() {
+        return -1;
+    }
+
+    public int getIntrinsicHeight() {
+        return -1;
+    }
+
+    public int getOpacity() {
+        return 0;
+    }
+
+    public void setBounds(int left, int top, int right, int bottom) {
+    }
+
+    public abstract void draw(Canvas canvas);
+}
@@ -0,0 +1,10 @@
+/*
+ * 仅用于在 JVM 上运行压测的最小 stub，只实现 AndroidCache 用到的部分。
+ */
+package android.os;
+
+public class Process {
+    public static int myPid() {
+        return 0;
+    }
+}
@@ -0,0 +1,20 @@
+/*
+ * 仅用于在 JVM 上运行压测的最小 stub，只实现 AndroidCache 用到的部分。
+ */
+package org.json;
+
+public class JSONObject {
+    private final String json;
+
+    public JSONObject(String json) throws JSONException {
+        if (json == null) {
+            throw new JSONException("null");
+        }
+        this.json = json;
+    }
+
+    @Override
+    public String toString() {
+        return json;
+    }
+}